@@ -6,14 +6,23 @@ import org.dsa.iot.coap.controllers.CoapClientController;
 import org.dsa.iot.coap.controllers.CoapServerController;
 import org.dsa.iot.coap.handlers.dsa.CoapRequestHandler;
 import org.dsa.iot.coap.handlers.dsa.CoapResponseHandler;
+import org.dsa.iot.coap.handlers.dsa.FlowController;
+import org.dsa.iot.coap.handlers.dsa.ResponseBatcher;
+import org.dsa.iot.coap.handlers.dsa.RemoteSubscriptionTable;
 import org.dsa.iot.coap.resources.RidUpdateResource;
 import org.dsa.iot.coap.resources.UpdateResourceInterface;
+import org.dsa.iot.coap.tracing.EventRecorder;
+import org.dsa.iot.coap.tracing.Tracer;
 import org.dsa.iot.dslink.DSLink;
 import org.dsa.iot.dslink.DSLinkHandler;
 import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.NodeBuilder;
 import org.dsa.iot.dslink.node.Permission;
+import org.dsa.iot.dslink.node.Writable;
 import org.dsa.iot.dslink.node.actions.Action;
 import org.dsa.iot.dslink.node.actions.Parameter;
+import org.dsa.iot.dslink.node.actions.ResultType;
+import org.dsa.iot.dslink.node.value.Value;
 import org.dsa.iot.dslink.node.value.ValueType;
 import org.dsa.iot.dslink.util.json.JsonArray;
 import org.dsa.iot.dslink.util.json.JsonObject;
@@ -23,8 +32,11 @@ import org.eclipse.californium.core.CoapResource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -39,14 +51,25 @@ public class CoapLinkHandler extends DSLinkHandler {
     private DSLink responderLink;
     private final Set<Integer> usedIds = new HashSet<>();
     private static ScheduledThreadPoolExecutor executor;
+    private static ScheduledThreadPoolExecutor startupExecutor;
+    private static ScheduledThreadPoolExecutor controlExecutor;
+    private static ScheduledThreadPoolExecutor probeExecutor;
+    private static ScheduledThreadPoolExecutor retryExecutor;
+    private static final int STARTUP_THREADS = 16;
+    private static final int CONTROL_THREADS = 4;
+    private static final long TRACING_PUBLISH = 5;
+    private static final long FLOW_PUBLISH = 1;
 
 
     private int lastId = 0;
     private CoapRequestHandler requestHandler;
-    private boolean isRequesterInited = false;
+    private volatile boolean isRequesterInited = false;
+    private final List<Runnable> requesterReadyTasks = new ArrayList<>();
+    private final FlowController flowController = new FlowController(this);
+    private final ResponseBatcher responseBatcher = new ResponseBatcher(this);
 
     private Map<Integer, CoapResource> ridsToResources = new ConcurrentHashMap<>();
-    private Map<Integer, CoapResource> sidsToResources = new ConcurrentHashMap<>();
+    private Map<Integer, UpdateResourceInterface> sidsToResources = new ConcurrentHashMap<>();
     private Map<Integer, Integer> localToRemoteSid = new ConcurrentHashMap<>();
 
     public ScheduledThreadPoolExecutor getExecutor() {
@@ -58,6 +81,67 @@ public class CoapLinkHandler extends DSLinkHandler {
         return executor;
     }
 
+    /**
+     * Pool for control traffic (close, unsubscribe, subscribe, handshakes), kept apart from
+     * the data pool so it is never queued behind value updates.
+     */
+    public synchronized ScheduledThreadPoolExecutor getControlExecutor() {
+        if (controlExecutor == null) {
+            controlExecutor = new ScheduledThreadPoolExecutor(CONTROL_THREADS, runnable -> {
+                Thread thread = new Thread(runnable, "coap-control");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MAX_PRIORITY);
+                return thread;
+            });
+        }
+        return controlExecutor;
+    }
+
+    /**
+     * Single thread scheduling remote probes and their deadlines. Probes never block,
+     * so an unreachable remote can't hold up the probes of the others.
+     */
+    public synchronized ScheduledThreadPoolExecutor getProbeExecutor() {
+        if (probeExecutor == null) {
+            probeExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "coap-probe");
+                thread.setDaemon(true);
+                return thread;
+            });
+            probeExecutor.setRemoveOnCancelPolicy(true);
+        }
+        return probeExecutor;
+    }
+
+    /**
+     * Single thread timing remote requests: try deadlines and the delays between tries.
+     * Its tasks only hand requests to the endpoints, they never wait for an answer.
+     */
+    public synchronized ScheduledThreadPoolExecutor getRetryExecutor() {
+        if (retryExecutor == null) {
+            retryExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "coap-retry");
+                thread.setDaemon(true);
+                return thread;
+            });
+            retryExecutor.setRemoveOnCancelPolicy(true);
+        }
+        return retryExecutor;
+    }
+
+    /**
+     * Bounded pool for server binds and remote handshakes, so an unreachable remote
+     * only ever ties up one of its threads.
+     */
+    public synchronized ScheduledThreadPoolExecutor getStartupExecutor() {
+        if (startupExecutor == null) {
+            startupExecutor = SharedObjects.createDaemonThreadPool(STARTUP_THREADS);
+            startupExecutor.setKeepAliveTime(1, TimeUnit.MINUTES);
+            startupExecutor.allowCoreThreadTimeOut(true);
+        }
+        return startupExecutor;
+    }
+
     public boolean handleRemoteDSAMessage(JsonObject json) {
         Integer rid = json.get("rid");
         if (rid == null) return false;
@@ -71,7 +155,7 @@ public class CoapLinkHandler extends DSLinkHandler {
         return true;
     }
 
-    public void add0Observer(CoapObserveRelation obs) {
+    public void add0Observer(CoapClientController.Observation obs) {
         requestHandler.add0Observer(obs);
     }
 
@@ -79,23 +163,36 @@ public class CoapLinkHandler extends DSLinkHandler {
         //TODO: check all sids, combine remote into batches, fix sids to match remote, send each batch to right resource
         //TODO: pass all locals to be handled locally
         JsonArray updates = json.get("updates");
-        Map <CoapResource, JsonArray> resMap = new HashMap<>();
+        Map <UpdateResourceInterface, JsonArray> resMap = new HashMap<>();
         for (Object update : updates) {
             int sid = Constants.getAndReplaceSid(update, localToRemoteSid);
-            CoapResource res = sidsToResources.get(sid);
+            UpdateResourceInterface res = sidsToResources.get(sid);
             if (res != null) {
                 if (resMap.containsKey(res)) resMap.get(res).add(update);
                 else resMap.put(res, new JsonArray().add(update));
             }
         }
 
-        for (Map.Entry<CoapResource,JsonArray> ent : resMap.entrySet()) {
-            ((UpdateResourceInterface) ent.getKey()).postDSAUpdate(Constants.createSidUpd(ent.getValue()));
+        for (Map.Entry<UpdateResourceInterface,JsonArray> ent : resMap.entrySet()) {
+            ent.getKey().postDSAUpdate(Constants.createSidUpd(ent.getValue()));
         }
 
         return false;
     }
 
+    /**
+     * Fan out rid 0 updates coming from a remote, where one remote sid can stand for
+     * several local sids of the subscription table. Updates are routed one by one
+     * while the payload is decoded.
+     */
+    public void handleRemoteSubscriptionUpdate(byte[] payload, RemoteSubscriptionTable subscriptions) {
+        JsonArray localUpdates = new JsonArray();
+        PayloadDecoder.decodeStreaming(payload, update -> subscriptions.fanOut(update, localUpdates));
+        if (localUpdates.size() > 0) {
+            writeResponse(Constants.createSidUpd(localUpdates));
+        }
+    }
+
     public int genLocalId() {
         int nextId;
         synchronized (usedIds) {
@@ -103,14 +200,38 @@ public class CoapLinkHandler extends DSLinkHandler {
             while (usedIds.contains(nextId)) { if (++nextId < 0) nextId = 1;}
             lastId = nextId;
         }
+        EventRecorder.record(EventRecorder.Type.ID_ALLOCATED, nextId, 0);
         return nextId;
     }
 
+    /**
+     * Mark an id restored from persisted state as used, so it is never handed out again.
+     */
+    public void reserveLocalId(int id) {
+        synchronized (usedIds) {
+            usedIds.add(id);
+            if (id > lastId) lastId = id;
+        }
+    }
+
+    /**
+     * Run the task once the requester link is up, right away if it already is.
+     */
+    public void whenRequesterReady(Runnable task) {
+        synchronized (requesterReadyTasks) {
+            if (!isRequesterInited) {
+                requesterReadyTasks.add(task);
+                return;
+            }
+        }
+        task.run();
+    }
+
     public void registerNewRid(int localRid, CoapResource res) {
         ridsToResources.put(localRid, res);
     }
 
-    public void registerNewSid(int localSid, int remoteSid, CoapResource res) {
+    public void registerNewSid(int localSid, int remoteSid, UpdateResourceInterface res) {
         sidsToResources.put(localSid, res);
         localToRemoteSid.put(localSid,remoteSid);
     }
@@ -122,6 +243,7 @@ public class CoapLinkHandler extends DSLinkHandler {
         synchronized (usedIds) {
             usedIds.remove(localId);
         }
+        EventRecorder.record(EventRecorder.Type.ID_RETIRED, localId, 0);
     }
 
     @Override
@@ -138,13 +260,14 @@ public class CoapLinkHandler extends DSLinkHandler {
             return;
         }
 
+        //Servers bind concurrently, client handshakes run in the background
         for (Node node : rootNode.getChildren().values()) {
             if (node.getConfig("client") != null && node.getConfig("client").getBool()) {
                 setupCoapClient(node);
             }
 
             if (node.getConfig("server") != null && node.getConfig("server").getBool()) {
-                setupCoapServer(node);
+                getStartupExecutor().execute(() -> setupCoapServer(node));
             }
         }
     }
@@ -161,6 +284,13 @@ public class CoapLinkHandler extends DSLinkHandler {
                             new Action(Permission.WRITE, new CreateCoapClientAction())
                                     .addParameter(new Parameter("name", ValueType.STRING))
                                     .addParameter(new Parameter("url", ValueType.STRING))
+                                    .addParameter(new Parameter(Constants.LIST_LINGER, ValueType.NUMBER,
+                                            new Value(Constants.DEFAULT_LIST_LINGER)))
+                                    .addParameter(new Parameter(Constants.COALESCE_SETS, ValueType.BOOL, new Value(true)))
+                                    .addParameter(new Parameter(Constants.COALESCE_EXCLUDE, ValueType.STRING, new Value("")))
+                                    .addParameter(new Parameter(Constants.LAZY_CONNECT, ValueType.BOOL, new Value(false)))
+                                    .addParameter(new Parameter(Constants.PROBE_INTERVAL, ValueType.NUMBER,
+                                            new Value(Constants.DEFAULT_PROBE_INTERVAL)))
                     )
                     .build();
         }
@@ -174,19 +304,213 @@ public class CoapLinkHandler extends DSLinkHandler {
                             new Action(Permission.WRITE, new CreateCoapServerAction())
                                     .addParameter(new Parameter("name", ValueType.STRING))
                                     .addParameter(new Parameter("port", ValueType.NUMBER))
+                                    .addParameter(new Parameter(Constants.RID0_MODE,
+                                            ValueType.makeEnum(Constants.RID0_LOSSLESS, Constants.RID0_LATEST),
+                                            new Value(Constants.RID0_LOSSLESS)))
+                                    .addParameter(new Parameter(Constants.SAF_ENABLED, ValueType.BOOL, new Value(false)))
+                                    .addParameter(new Parameter(Constants.SAF_MAX_MB, ValueType.NUMBER,
+                                            new Value(Constants.DEFAULT_SAF_MAX_MB)))
+                                    .addParameter(new Parameter(Constants.SAF_MAX_AGE, ValueType.NUMBER,
+                                            new Value(Constants.DEFAULT_SAF_MAX_AGE)))
+                                    .addParameter(new Parameter(Constants.SAF_REPLAY_RATE, ValueType.NUMBER,
+                                            new Value(Constants.DEFAULT_SAF_REPLAY_RATE)))
+                                    .addParameter(new Parameter(Constants.PERSIST_SUBS, ValueType.BOOL, new Value(false)))
+                                    .addParameter(new Parameter(Constants.RATE_LIMIT, ValueType.NUMBER,
+                                            new Value(Constants.DEFAULT_RATE_LIMIT)))
+                                    .addParameter(new Parameter(Constants.RATE_BURST, ValueType.NUMBER,
+                                            new Value(Constants.DEFAULT_RATE_BURST)))
+                                    .addParameter(new Parameter(Constants.MAX_STREAMS, ValueType.NUMBER,
+                                            new Value(Constants.DEFAULT_MAX_STREAMS)))
+                                    .addParameter(new Parameter(Constants.STREAM_TABLE, ValueType.BOOL, new Value(false)))
+                                    .addParameter(new Parameter(Constants.WINDOWED_STREAMS, ValueType.BOOL, new Value(false)))
                     )
                     .build();
         }
 
+        initTracingNode(rootNode);
+        initEventsNode(rootNode);
+        initFlowControlNode(rootNode);
+        initBatchingNode(rootNode);
+
         return rootNode;
     }
 
+    private void initFlowControlNode(Node rootNode) {
+        Node flow = rootNode.getChild("flow_control", false);
+        if (flow == null) {
+            flow = rootNode
+                    .createChild("flow_control", false)
+                    .setDisplayName("Flow Control")
+                    .build();
+        }
+        Node high = getOrCreateNumber(flow, "high_water", "High Water Mark", FlowController.DEFAULT_HIGH_WATER, true);
+        Node low = getOrCreateNumber(flow, "low_water", "Low Water Mark", FlowController.DEFAULT_LOW_WATER, true);
+        Runnable applyWatermarks = () -> flowController.setWatermarks(
+                high.getValue().getNumber().longValue(), low.getValue().getNumber().longValue());
+        applyWatermarks.run();
+        high.getListener().setValueHandler(pair -> applyWatermarks.run());
+        low.getListener().setValueHandler(pair -> applyWatermarks.run());
+
+        Node peerHigh = getOrCreateNumber(flow, "peer_high_water", "Peer High Water Mark",
+                FlowController.DEFAULT_PEER_HIGH_WATER, true);
+        Node peerLow = getOrCreateNumber(flow, "peer_low_water", "Peer Low Water Mark",
+                FlowController.DEFAULT_PEER_LOW_WATER, true);
+        Runnable applyPeerWatermarks = () -> flowController.setPeerWatermarks(
+                peerHigh.getValue().getNumber().longValue(), peerLow.getValue().getNumber().longValue());
+        applyPeerWatermarks.run();
+        peerHigh.getListener().setValueHandler(pair -> applyPeerWatermarks.run());
+        peerLow.getListener().setValueHandler(pair -> applyPeerWatermarks.run());
+
+        Node queued = getOrCreateNumber(flow, "queued", "Queued Messages", 0, false);
+        Node paused = getOrCreateNumber(flow, "paused_peers", "Paused Peers", 0, false);
+        Node stalls = getOrCreateNumber(flow, "stalls", "Stalls", 0, false);
+        Node stalled = flow.getChild("stalled", false);
+        if (stalled == null) {
+            stalled = flow
+                    .createChild("stalled", false)
+                    .setDisplayName("Stalled")
+                    .setValueType(ValueType.BOOL)
+                    .setValue(new Value(false))
+                    .setSerializable(false)
+                    .build();
+        }
+        final Node stalledNode = stalled;
+        getExecutor().scheduleWithFixedDelay(() -> {
+            flowController.checkStall();
+            queued.setValue(new Value(flowController.getQueued()));
+            stalls.setValue(new Value(flowController.getStalls()));
+            paused.setValue(new Value(flowController.getPausedPeers()));
+            stalledNode.setValue(new Value(flowController.isStalled()));
+        }, FLOW_PUBLISH, FLOW_PUBLISH, TimeUnit.SECONDS);
+    }
+
+    private void initBatchingNode(Node rootNode) {
+        Node batching = rootNode.getChild("response_batching", false);
+        if (batching == null) {
+            batching = rootNode
+                    .createChild("response_batching", false)
+                    .setDisplayName("Response Batching")
+                    .build();
+        }
+        Node maxBatch = getOrCreateNumber(batching, "max_batch", "Max Batch", ResponseBatcher.DEFAULT_MAX_BATCH, true);
+        Node maxDelay = getOrCreateNumber(batching, "max_delay", "Max Delay (ms)", ResponseBatcher.DEFAULT_MAX_DELAY, true);
+        Runnable applyWindow = () -> responseBatcher.setWindow(
+                maxBatch.getValue().getNumber().longValue(), maxDelay.getValue().getNumber().longValue());
+        applyWindow.run();
+        maxBatch.getListener().setValueHandler(pair -> applyWindow.run());
+        maxDelay.getListener().setValueHandler(pair -> applyWindow.run());
+
+        Node average = getOrCreateNumber(batching, "average_batch", "Average Batch", 0, false);
+        Node frames = getOrCreateNumber(batching, "frames", "Frames", 0, false);
+        Node responses = getOrCreateNumber(batching, "responses", "Responses", 0, false);
+        getExecutor().scheduleWithFixedDelay(() -> {
+            average.setValue(new Value(Math.round(responseBatcher.getAverageBatch() * 10) / 10.0));
+            frames.setValue(new Value(responseBatcher.getFrames()));
+            responses.setValue(new Value(responseBatcher.getResponses()));
+        }, FLOW_PUBLISH, FLOW_PUBLISH, TimeUnit.SECONDS);
+    }
+
+    private static Node getOrCreateNumber(Node parent, String name, String displayName, long value, boolean writable) {
+        Node node = parent.getChild(name, false);
+        if (node == null) {
+            NodeBuilder builder = parent
+                    .createChild(name, false)
+                    .setDisplayName(displayName)
+                    .setValueType(ValueType.NUMBER)
+                    .setValue(new Value(value));
+            if (writable) builder.setWritable(Writable.WRITE);
+            else builder.setSerializable(false);
+            node = builder.build();
+        }
+        if (node.getValue() == null || node.getValue().getNumber() == null) node.setValue(new Value(value));
+        return node;
+    }
+
+    private void initEventsNode(Node rootNode) {
+        Node events = rootNode.getChild("events", false);
+        if (events == null) {
+            events = rootNode
+                    .createChild("events", false)
+                    .setDisplayName("Event Recorder")
+                    .build();
+        }
+        Node enabled = events.getChild("enabled", false);
+        if (enabled == null) {
+            enabled = events
+                    .createChild("enabled", false)
+                    .setDisplayName("Enabled")
+                    .setValueType(ValueType.BOOL)
+                    .setValue(new Value(false))
+                    .setWritable(Writable.WRITE)
+                    .build();
+        }
+        EventRecorder.setEnabled(enabled.getValue() != null && enabled.getValue().getBool());
+        enabled.getListener().setValueHandler(pair -> {
+            Value val = pair.getCurrent();
+            EventRecorder.setEnabled(val != null && val.getBool());
+        });
+        if (!events.hasChild("dump", false)) {
+            events
+                    .createChild("dump", false)
+                    .setDisplayName("Dump Events")
+                    .setSerializable(false)
+                    .setAction(
+                            new Action(Permission.READ, new EventRecorder.DumpHandler())
+                                    .addResult(new Parameter("time", ValueType.NUMBER))
+                                    .addResult(new Parameter("type", ValueType.STRING))
+                                    .addResult(new Parameter("id", ValueType.NUMBER))
+                                    .addResult(new Parameter("value", ValueType.NUMBER))
+                                    .setResultType(ResultType.TABLE)
+                    )
+                    .build();
+        }
+    }
+
+    private void initTracingNode(Node rootNode) {
+        Node tracing = rootNode.getChild("tracing", false);
+        if (tracing == null) {
+            tracing = rootNode
+                    .createChild("tracing", false)
+                    .setDisplayName("Tracing")
+                    .build();
+        }
+        Node rate = tracing.getChild("sampling_rate", false);
+        if (rate == null) {
+            rate = tracing
+                    .createChild("sampling_rate", false)
+                    .setDisplayName("Sampling Rate")
+                    .setValueType(ValueType.NUMBER)
+                    .setValue(new Value(0))
+                    .setWritable(Writable.WRITE)
+                    .build();
+        }
+        if (rate.getValue() != null && rate.getValue().getNumber() != null) {
+            Tracer.setSamplingRate(rate.getValue().getNumber().doubleValue());
+        }
+        rate.getListener().setValueHandler(pair -> {
+            Value val = pair.getCurrent();
+            Tracer.setSamplingRate((val != null && val.getNumber() != null) ? val.getNumber().doubleValue() : 0);
+        });
+        final Node stages = tracing;
+        getExecutor().scheduleWithFixedDelay(() -> {
+            if (Tracer.getSamplingRate() > 0) Tracer.publish(stages);
+        }, TRACING_PUBLISH, TRACING_PUBLISH, TimeUnit.SECONDS);
+    }
+
     @Override
     public void onRequesterInitialized(DSLink link) {
         super.onRequesterInitialized(link);
         requesterLink = link;
         requesterLink.getWriter().setRespHandler(new CoapResponseHandler(this));
-        isRequesterInited = true;
+        List<Runnable> tasks;
+        synchronized (requesterReadyTasks) {
+            isRequesterInited = true;
+            tasks = new ArrayList<>(requesterReadyTasks);
+            requesterReadyTasks.clear();
+        }
+        for (Runnable task : tasks) {
+            task.run();
+        }
     }
 
     @Override
@@ -231,6 +555,33 @@ public class CoapLinkHandler extends DSLinkHandler {
         }
     }
 
+    /**
+     * Send a response to the local broker over the responder link, batched with
+     * others arriving close together.
+     */
+    public void writeResponse(JsonObject json) {
+        responseBatcher.add(json);
+    }
+
+    /**
+     * Send the direct answers to a request message to the local broker right away,
+     * behind any batched responses.
+     */
+    public void writeResponses(Integer ackId, Collection<JsonObject> jsons) {
+        responseBatcher.addAll(ackId, jsons);
+    }
+
+    /**
+     * Send a request to the local broker over the requester link.
+     */
+    public void writeToLocalBroker(JsonObject json) {
+        requesterLink.getWriter().writeRequest(json, false);
+    }
+
+    public FlowController getFlowController() {
+        return flowController;
+    }
+
     public DSLink getRequesterLink() {
         return requesterLink;
     }
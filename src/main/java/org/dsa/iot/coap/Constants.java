@@ -3,6 +3,7 @@ package org.dsa.iot.coap;
 import org.dsa.iot.dslink.util.json.JsonArray;
 import org.dsa.iot.dslink.util.json.JsonObject;
 import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.server.resources.CoapExchange;
 
 import java.io.UnsupportedEncodingException;
@@ -14,6 +15,8 @@ public class Constants {
     public static final String CONN = "conn";
     public static final String REMOTE_NAME = "RemoteDSA";
     public static final String MAIN_SERVER_NAME = "__DSACoapGateway";
+    public static final String CONTROL_SERVER_NAME = "__DSACoapControl";
+    public static final String STREAM_TABLE_NAME = "__streams";
     public static final String RID_PREFIX = "__rid_";
     public static final String REMOTE_RID_FIELD = "RemoteRid";
     public static final String BLANK_KEY = "BlankJson";
@@ -21,6 +24,44 @@ public class Constants {
     public static final String GIMME = "GiveMe";
     public static final String RID_ZERO_HANDLE = "Rid0Handle";
     public static final String HERE_YOU_GO = "HereYoGo";
+    public static final String RESYNC = "Resync";
+    public static final String RESEND = "Resend";
+    public static final String SEQ_FIELD = "seq";
+    public static final String BATCH_FIELD = "batch";
+    public static final String LIST_LINGER = "list_linger";
+    public static final long DEFAULT_LIST_LINGER = 5000;
+    public static final String COALESCE_SETS = "coalesce_sets";
+    public static final String COALESCE_EXCLUDE = "coalesce_exclude";
+    public static final String LAZY_CONNECT = "lazy_connect";
+    public static final String PROBE_INTERVAL = "probe_interval";
+    public static final long DEFAULT_PROBE_INTERVAL = 10;
+    public static final String RID0_MODE = "rid0_mode";
+    public static final String RID0_LOSSLESS = "lossless";
+    public static final String RID0_LATEST = "latest";
+    public static final String SAF_ENABLED = "saf_enabled";
+    public static final String SAF_MAX_MB = "saf_max_mb";
+    public static final String SAF_MAX_AGE = "saf_max_age";
+    public static final String SAF_REPLAY_RATE = "saf_replay_rate";
+    public static final long DEFAULT_SAF_MAX_MB = 64;
+    public static final long DEFAULT_SAF_MAX_AGE = 3600;
+    public static final int DEFAULT_SAF_REPLAY_RATE = 1000;
+    public static final String SAF_DIR = "store-and-forward";
+    public static final int SAF_SEGMENT_SIZE = 4 * 1024 * 1024;
+    public static final String PERSIST_SUBS = "persist_subscriptions";
+    public static final String SUBS_DIR = "subscriptions";
+    public static final long RESYNC_GRACE = 600;
+    public static final String RATE_LIMIT = "rate_limit";
+    public static final String RATE_BURST = "rate_burst";
+    public static final String MAX_STREAMS = "max_streams";
+    public static final int DEFAULT_RATE_LIMIT = 100;
+    public static final int DEFAULT_RATE_BURST = 200;
+    public static final int DEFAULT_MAX_STREAMS = 256;
+    public static final long STREAM_RETRY_AFTER = 5;
+    public static final String STREAM_TABLE = "stream_table";
+    public static final String WINDOWED_STREAMS = "windowed_streams";
+    public static final String PEER_ID = "peer_id";
+    //Experimental use range and elective, like the trace option
+    public static final int PEER_OPTION = 65004;
 
     public static JsonObject makeCloseReponse(int rid) {
         JsonObject obj = new JsonObject();
@@ -40,21 +81,25 @@ public class Constants {
     }
 
     public static boolean checkIfArray(CoapResponse response) {
-        byte[] ar = response.getPayload();
-        if (ar == null) return false;
-        return new String(ar).startsWith("[");
+        return PayloadDecoder.isArray(response.getPayload());
     }
 
     public static JsonObject extractPayloadObject(CoapResponse response) {
         byte[] ar = response.getPayload();
         if (ar == null) return null;
-        return new JsonObject(new String(ar));
+        return PayloadDecoder.decodeObject(ar);
+    }
+
+    public static JsonObject extractPayloadObject(Response response) {
+        byte[] ar = response.getPayload();
+        if (ar == null) return null;
+        return PayloadDecoder.decodeObject(ar);
     }
 
     public static JsonArray extractPayloadArray(CoapResponse response) {
         byte[] ar = response.getPayload();
         if (ar == null) return null;
-        return new JsonArray(new String(ar));
+        return PayloadDecoder.decodeArray(ar);
     }
 
     public static JsonObject createSubReq(JsonArray paths, int rid) {
@@ -117,6 +162,34 @@ public class Constants {
         return sid;
     }
 
+    private static final String[] UPDATE_FIELDS = {"value", "ts", "status", "count", "sum", "min", "max"};
+
+    /**
+     * Copy a subscription update, in either array or map form, giving it a new sid.
+     */
+    public static Object copyUpdateWithSid(Object json, int sid) {
+        if (json instanceof JsonObject) {
+            JsonObject src = (JsonObject) json;
+            JsonObject copy = new JsonObject();
+            copy.put("sid", sid);
+            for (String field : UPDATE_FIELDS) {
+                Object val = src.get(field);
+                if (val != null) copy.put(field, val);
+            }
+            return copy;
+        } else if (json instanceof JsonArray) {
+            JsonArray src = (JsonArray) json;
+            JsonArray copy = new JsonArray();
+            copy.add(sid);
+            for (int i = 1; i < src.size(); i++) {
+                copy.add(src.get(i));
+            }
+            return copy;
+        } else {
+            throw new RuntimeException("Could not find sid");
+        }
+    }
+
     public static void sortLocalVsRemote(JsonArray paths, JsonArray local, Map<String, JsonArray> remote) {
         for (Object subReq : paths) {
             JsonObject sub = (JsonObject) subReq;
@@ -133,11 +206,11 @@ public class Constants {
     }
 
     public static JsonObject extractPayloadObject(CoapExchange exchange) {
-        return new JsonObject(new String(exchange.getRequestPayload()));
+        return PayloadDecoder.decodeObject(exchange.getRequestPayload());
     }
 
     public static JsonArray extractPayloadArray(CoapExchange exchange) {
-        return new JsonArray(new String(exchange.getRequestPayload()));
+        return PayloadDecoder.decodeArray(exchange.getRequestPayload());
     }
 
     public static String extractRemotePath(String path) {
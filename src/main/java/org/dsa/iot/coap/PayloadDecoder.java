@@ -0,0 +1,131 @@
+package org.dsa.iot.coap;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.dsa.iot.dslink.util.json.JsonArray;
+import org.dsa.iot.dslink.util.json.JsonObject;
+
+import java.io.IOException;
+
+/**
+ * Decodes CoAP payloads straight from their UTF-8 bytes into DSA json, without
+ * going through an intermediate String.
+ */
+public class PayloadDecoder {
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    /**
+     * Receives the elements of an "updates" array one at a time.
+     */
+    public interface UpdateVisitor {
+        void visitUpdate(Object update);
+    }
+
+    /**
+     * Check whether the payload holds a json array, only looking at its first
+     * non whitespace byte.
+     */
+    public static boolean isArray(byte[] payload) {
+        if (payload == null) return false;
+        for (byte b : payload) {
+            if (b == ' ' || b == '\t' || b == '\r' || b == '\n') continue;
+            return b == '[';
+        }
+        return false;
+    }
+
+    public static JsonObject decodeObject(byte[] payload) {
+        return decodeStreaming(payload, null);
+    }
+
+    public static JsonArray decodeArray(byte[] payload) {
+        try (JsonParser parser = FACTORY.createParser(payload)) {
+            expect(parser.nextToken(), JsonToken.START_ARRAY);
+            return readArray(parser);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to decode payload", e);
+        }
+    }
+
+    /**
+     * Decode a json object, handing every element of its top level "updates" array
+     * to the visitor instead of collecting them. The returned object holds all
+     * other fields.
+     *
+     * @param payload UTF-8 encoded json object
+     * @param visitor Receives updates, when null updates are kept in the object
+     */
+    public static JsonObject decodeStreaming(byte[] payload, UpdateVisitor visitor) {
+        try (JsonParser parser = FACTORY.createParser(payload)) {
+            expect(parser.nextToken(), JsonToken.START_OBJECT);
+            JsonObject obj = new JsonObject();
+            JsonToken token;
+            while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                token = parser.nextToken();
+                if (visitor != null && token == JsonToken.START_ARRAY && "updates".equals(name)) {
+                    while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                        visitor.visitUpdate(readValue(parser, token));
+                    }
+                } else {
+                    obj.put(name, readValue(parser, token));
+                }
+            }
+            expect(token, JsonToken.END_OBJECT);
+            return obj;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to decode payload", e);
+        }
+    }
+
+    private static void expect(JsonToken token, JsonToken expected) throws IOException {
+        if (token != expected) {
+            throw new IOException("Expected " + expected + " but got " + token);
+        }
+    }
+
+    private static JsonObject readObject(JsonParser parser) throws IOException {
+        JsonObject obj = new JsonObject();
+        JsonToken token;
+        while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            obj.put(name, readValue(parser, parser.nextToken()));
+        }
+        expect(token, JsonToken.END_OBJECT);
+        return obj;
+    }
+
+    private static JsonArray readArray(JsonParser parser) throws IOException {
+        JsonArray array = new JsonArray();
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            array.add(readValue(parser, token));
+        }
+        return array;
+    }
+
+    private static Object readValue(JsonParser parser, JsonToken token) throws IOException {
+        if (token == null) throw new IOException("Unexpected end of payload");
+        switch (token) {
+            case START_OBJECT:
+                return readObject(parser);
+            case START_ARRAY:
+                return readArray(parser);
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return parser.getNumberValue();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_NULL:
+                return null;
+            default:
+                throw new IOException("Unexpected token " + token);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.dsa.iot.coap.actions;
 
 import org.dsa.iot.coap.CoapLinkHandler;
+import org.dsa.iot.coap.Constants;
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.NodeManager;
 import org.dsa.iot.dslink.node.actions.ActionResult;
@@ -12,6 +13,11 @@ public class CreateCoapClientAction implements Handler<ActionResult> {
     public void handle(ActionResult event) {
         String name = Node.checkAndEncodeName(event.getParameter("name").getString());
         String url = event.getParameter("url").getString();
+        Value linger = event.getParameter(Constants.LIST_LINGER, new Value(Constants.DEFAULT_LIST_LINGER));
+        Value coalesce = event.getParameter(Constants.COALESCE_SETS, new Value(true));
+        Value exclude = event.getParameter(Constants.COALESCE_EXCLUDE, new Value(""));
+        Value lazy = event.getParameter(Constants.LAZY_CONNECT, new Value(false));
+        Value probe = event.getParameter(Constants.PROBE_INTERVAL, new Value(Constants.DEFAULT_PROBE_INTERVAL));
         NodeManager nodeManager = event.getNode().getLink().getDSLink().getNodeManager();
 
         Node node = nodeManager
@@ -19,6 +25,11 @@ public class CreateCoapClientAction implements Handler<ActionResult> {
                 .setDisplayName(name)
                 .setConfig("client", new Value(true))
                 .setConfig("coap_url", new Value(url))
+                .setConfig(Constants.LIST_LINGER, linger)
+                .setConfig(Constants.COALESCE_SETS, coalesce)
+                .setConfig(Constants.COALESCE_EXCLUDE, exclude)
+                .setConfig(Constants.LAZY_CONNECT, lazy)
+                .setConfig(Constants.PROBE_INTERVAL, probe)
                 .setSerializable(true)
                 .build();
 
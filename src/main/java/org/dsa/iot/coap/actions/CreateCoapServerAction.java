@@ -1,6 +1,7 @@
 package org.dsa.iot.coap.actions;
 
 import org.dsa.iot.coap.CoapLinkHandler;
+import org.dsa.iot.coap.Constants;
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.NodeManager;
 import org.dsa.iot.dslink.node.actions.ActionResult;
@@ -12,6 +13,17 @@ public class CreateCoapServerAction implements Handler<ActionResult> {
     public void handle(ActionResult event) {
         String name = Node.checkAndEncodeName(event.getParameter("name").getString());
         int port = event.getParameter("port").getNumber().intValue();
+        Value rid0Mode = event.getParameter(Constants.RID0_MODE, new Value(Constants.RID0_LOSSLESS));
+        Value saf = event.getParameter(Constants.SAF_ENABLED, new Value(false));
+        Value safMaxMb = event.getParameter(Constants.SAF_MAX_MB, new Value(Constants.DEFAULT_SAF_MAX_MB));
+        Value safMaxAge = event.getParameter(Constants.SAF_MAX_AGE, new Value(Constants.DEFAULT_SAF_MAX_AGE));
+        Value safRate = event.getParameter(Constants.SAF_REPLAY_RATE, new Value(Constants.DEFAULT_SAF_REPLAY_RATE));
+        Value persist = event.getParameter(Constants.PERSIST_SUBS, new Value(false));
+        Value rateLimit = event.getParameter(Constants.RATE_LIMIT, new Value(Constants.DEFAULT_RATE_LIMIT));
+        Value rateBurst = event.getParameter(Constants.RATE_BURST, new Value(Constants.DEFAULT_RATE_BURST));
+        Value maxStreams = event.getParameter(Constants.MAX_STREAMS, new Value(Constants.DEFAULT_MAX_STREAMS));
+        Value streamTable = event.getParameter(Constants.STREAM_TABLE, new Value(false));
+        Value windowed = event.getParameter(Constants.WINDOWED_STREAMS, new Value(false));
         NodeManager nodeManager = event.getNode().getLink().getDSLink().getNodeManager();
 
         Node node = nodeManager
@@ -19,6 +31,17 @@ public class CreateCoapServerAction implements Handler<ActionResult> {
                 .setDisplayName(name)
                 .setConfig("server", new Value(true))
                 .setConfig("coap_port", new Value(port))
+                .setConfig(Constants.RID0_MODE, rid0Mode)
+                .setConfig(Constants.SAF_ENABLED, saf)
+                .setConfig(Constants.SAF_MAX_MB, safMaxMb)
+                .setConfig(Constants.SAF_MAX_AGE, safMaxAge)
+                .setConfig(Constants.SAF_REPLAY_RATE, safRate)
+                .setConfig(Constants.PERSIST_SUBS, persist)
+                .setConfig(Constants.RATE_LIMIT, rateLimit)
+                .setConfig(Constants.RATE_BURST, rateBurst)
+                .setConfig(Constants.MAX_STREAMS, maxStreams)
+                .setConfig(Constants.STREAM_TABLE, streamTable)
+                .setConfig(Constants.WINDOWED_STREAMS, windowed)
                 .setSerializable(true)
                 .build();
 
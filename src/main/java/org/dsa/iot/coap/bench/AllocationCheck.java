@@ -0,0 +1,329 @@
+package org.dsa.iot.coap.bench;
+
+import org.dsa.iot.coap.CoapLinkHandler;
+import org.dsa.iot.coap.Constants;
+import org.dsa.iot.coap.PayloadDecoder;
+import org.dsa.iot.coap.handlers.coap.AsynchListener;
+import org.dsa.iot.coap.handlers.coap.SequencedStream;
+import org.dsa.iot.coap.loadgen.StubBroker;
+import org.dsa.iot.coap.resources.DSACoapServer;
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.util.json.JsonArray;
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapObserveRelation;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.CoapEndpoint;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Bytes allocated per operation on the per-message hot paths, checked against a
+ * budget file. AllocationBudgetTest runs the check as part of the build, main prints
+ * the measurements and exits with 1 if any path goes over its budget or has none
+ * recorded.
+ *
+ * Handler level paths are measured on the calling thread. The gateway paths run over
+ * loopback and count every thread in the JVM, client side included.
+ *
+ * Usage: AllocationCheck [--budget allocation-budget.properties] [--port 0] [--record true]
+ * With --record the budget file is rewritten from the measurements plus 20% headroom.
+ */
+public class AllocationCheck {
+
+    private static final int WARMUP = 20000;
+    private static final int OPS = 20000;
+    private static final int LOOPBACK_OPS = 2000;
+    private static final double HEADROOM = 1.2;
+    private static final String TS = "2018-01-15T10:20:30.123-08:00";
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) throw new IllegalArgumentException("Unexpected argument " + args[i]);
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        String budgetFile = options.getOrDefault("budget", "allocation-budget.properties");
+        int port = Integer.parseInt(options.getOrDefault("port", "0"));
+        boolean record = Boolean.parseBoolean(options.getOrDefault("record", "false"));
+
+        Map<String, Long> measured = measure(port);
+
+        if (record) {
+            Properties budget = new Properties();
+            for (Map.Entry<String, Long> ent : measured.entrySet()) {
+                budget.setProperty(ent.getKey(), Long.toString((long) (ent.getValue() * HEADROOM)));
+            }
+            try (OutputStream out = new FileOutputStream(budgetFile)) {
+                budget.store(out, "Bytes allocated per operation, see AllocationCheck. Measured"
+                        + " on " + System.getProperty("java.vm.name") + " " + System.getProperty("java.version")
+                        + " plus " + Math.round((HEADROOM - 1) * 100) + "% headroom");
+            }
+            System.out.println("Recorded budget to " + budgetFile);
+        }
+
+        Properties budget = loadBudget(budgetFile);
+        List<String> failures = overBudget(measured, budget);
+        for (Map.Entry<String, Long> ent : measured.entrySet()) {
+            String limit = budget.getProperty(ent.getKey());
+            System.out.printf("%-24s %8d bytes/op  budget %8s  %s%n", ent.getKey(), ent.getValue(),
+                    (limit != null) ? limit.trim() : "-", (limit == null) ? "NO BUDGET"
+                            : failures.contains(ent.getKey()) ? "OVER BUDGET" : "ok");
+        }
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+    /**
+     * Measure every hot path.
+     *
+     * @param port Port of the loopback gateway, 0 picks a free one
+     * @return Bytes allocated per operation by path name
+     */
+    public static Map<String, Long> measure(int port) throws Exception {
+        Map<String, Long> measured = new LinkedHashMap<>();
+        measured.put("subscription_update", subscriptionUpdate());
+        measured.put("asynch_listener_onload", asynchListenerOnLoad());
+        Loopback loopback = new Loopback(port);
+        try {
+            measured.put("rid_update_notify", loopback.ridUpdateNotify());
+            measured.put("gateway_subscribe", loopback.gatewaySubscribe());
+        } finally {
+            loopback.close();
+        }
+        return measured;
+    }
+
+    public static Properties loadBudget(String budgetFile) throws IOException {
+        Properties budget = new Properties();
+        try (InputStream in = new FileInputStream(budgetFile)) {
+            budget.load(in);
+        }
+        return budget;
+    }
+
+    /**
+     * @return Names of the paths over their budget or without one
+     */
+    public static List<String> overBudget(Map<String, Long> measured, Properties budget) {
+        List<String> failures = new ArrayList<>();
+        for (Map.Entry<String, Long> ent : measured.entrySet()) {
+            String limit = budget.getProperty(ent.getKey());
+            //A path without a recorded budget fails too, an unmeasured ceiling gates nothing
+            if (limit == null || ent.getValue() > Long.parseLong(limit.trim())) failures.add(ent.getKey());
+        }
+        return failures;
+    }
+
+    /*
+     * One rid 0 update from the local broker, routed to a registered sid resource.
+     */
+    private static long subscriptionUpdate() {
+        CoapLinkHandler handler = new CoapLinkHandler();
+        handler.registerNewSid(1, 1, json -> {
+        });
+        JsonObject json = new JsonObject();
+        json.put("rid", 0);
+        json.put("updates", new JsonArray().add(new JsonArray().add(1).add(42.5).add(TS)));
+        return measureThread(i -> handler.handleRemoteDSAMessage(json), WARMUP, OPS);
+    }
+
+    /*
+     * One windowed stream notification through the listener, responses built up front.
+     */
+    private static long asynchListenerOnLoad() {
+        CoapLinkHandler handler = new CoapLinkHandler();
+        SequencedStream stream = new SequencedStream(handler, null, Constants.RID_PREFIX + 1, 1, msg -> {
+        });
+        AsynchListener listener = new AsynchListener(handler, stream);
+        Response[] responses = new Response[WARMUP + OPS];
+        for (int i = 0; i < responses.length; i++) {
+            JsonObject msg = new JsonObject();
+            msg.put("rid", 1);
+            msg.put("updates", new JsonArray().add(new JsonArray().add(i).add(TS)));
+            JsonObject payload = new JsonObject();
+            payload.put(Constants.SEQ_FIELD, i + 1);
+            payload.put(Constants.BATCH_FIELD, new JsonArray().add(msg));
+            responses[i] = new Response(CoAP.ResponseCode.CONTENT);
+            responses[i].setPayload(Constants.jsonToBytes(payload));
+        }
+        return measureThread(i -> listener.handleResponse(responses[i]), WARMUP, OPS);
+    }
+
+    private static long measureThread(IntConsumer op, int warmup, int ops) {
+        for (int i = 0; i < warmup; i++) op.accept(i);
+        long id = Thread.currentThread().getId();
+        long before = THREADS.getThreadAllocatedBytes(id);
+        for (int i = warmup; i < warmup + ops; i++) op.accept(i);
+        return (THREADS.getThreadAllocatedBytes(id) - before) / ops;
+    }
+
+    /*
+     * Threads that exit during the run take their counts with them, the pools
+     * involved are long lived.
+     */
+    private static long allocatedByAllThreads() {
+        long sum = 0;
+        for (long bytes : THREADS.getThreadAllocatedBytes(THREADS.getAllThreadIds())) {
+            if (bytes > 0) sum += bytes;
+        }
+        return sum;
+    }
+
+    /*
+     * A gateway on a stub broker and one peer talking to it over loopback.
+     */
+    private static class Loopback {
+        private final AtomicInteger lastListRid = new AtomicInteger();
+        private final StubBroker broker = new StubBroker() {
+            @Override
+            public void writeToLocalBroker(JsonObject json) {
+                if ("list".equals(json.get("method"))) lastListRid.set(json.get("rid"));
+                super.writeToLocalBroker(json);
+            }
+        };
+        private final String uriPrefix;
+        private final CoapEndpoint endpoint;
+        private final CoapClient gateway;
+        private final DSACoapServer server;
+        private int nextRid = 1;
+
+        Loopback(int port) throws IOException {
+            Node homeNode = new Node("allocation", null, null);
+            homeNode.setConfig(Constants.RATE_LIMIT, new Value(0));
+            homeNode.setConfig(Constants.MAX_STREAMS, new Value(0));
+            server = new DSACoapServer(homeNode, broker);
+            CoapEndpoint serverEndpoint = new CoapEndpoint(new InetSocketAddress("127.0.0.1", port));
+            server.addEndpoint(serverEndpoint);
+            server.start();
+
+            //The bound port, port 0 only picks one on start
+            uriPrefix = "coap://127.0.0.1:" + serverEndpoint.getAddress().getPort() + "/";
+            endpoint = new CoapEndpoint(new InetSocketAddress("127.0.0.1", 0));
+            endpoint.start();
+            gateway = new CoapClient(uriPrefix + Constants.MAIN_SERVER_NAME);
+            gateway.setEndpoint(endpoint);
+
+            JsonObject handshake = new JsonObject();
+            handshake.put(Constants.GIMME, Constants.RID_ZERO_HANDLE);
+            if (post(handshake) == null) throw new IOException("Gateway did not answer the handshake");
+        }
+
+        /*
+         * One list update from the broker until the peer has the notification.
+         */
+        long ridUpdateNotify() throws Exception {
+            JsonObject req = new JsonObject();
+            req.put("method", "list");
+            req.put("rid", nextRid++);
+            req.put("path", "/data");
+            JsonObject created = post(req);
+            String resource = (created != null) ? created.get(Constants.REMOTE_RID_FIELD) : null;
+            if (resource == null) throw new IOException("Gateway did not open the list stream");
+
+            Semaphore notified = new Semaphore(0);
+            CoapClient client = new CoapClient(uriPrefix + resource);
+            client.setEndpoint(endpoint);
+            CoapObserveRelation relation = client.observe(new CoapHandler() {
+                @Override
+                public void onLoad(CoapResponse response) {
+                    notified.release();
+                }
+
+                @Override
+                public void onError() {
+                }
+            });
+            //Let the open answer and the registration settle before counting
+            Thread.sleep(500);
+            notified.drainPermits();
+            int localRid = lastListRid.get();
+
+            JsonObject[] updates = new JsonObject[WARMUP + LOOPBACK_OPS];
+            for (int i = 0; i < updates.length; i++) {
+                JsonObject update = new JsonObject();
+                update.put("rid", localRid);
+                update.put("stream", "open");
+                update.put("updates", new JsonArray().add(new JsonArray().add("$stamp").add(i)));
+                updates[i] = update;
+            }
+            long bytes = measureAll(i -> {
+                broker.handleRemoteDSAMessage(updates[i]);
+                await(notified);
+            }, WARMUP, LOOPBACK_OPS);
+            relation.proactiveCancel();
+            return bytes;
+        }
+
+        /*
+         * One subscribe of a single new path, posted and answered.
+         */
+        long gatewaySubscribe() {
+            Request[] requests = new Request[WARMUP + LOOPBACK_OPS];
+            for (int i = 0; i < requests.length; i++) {
+                JsonObject path = new JsonObject();
+                path.put("path", "/data/value" + i);
+                path.put("sid", i + 1);
+                path.put("qos", 0);
+                requests[i] = newPost(Constants.createSubReq(new JsonArray().add(path), nextRid++));
+            }
+            return measureAll(i -> {
+                if (gateway.advanced(requests[i]) == null) throw new IllegalStateException("Subscribe timed out");
+            }, WARMUP, LOOPBACK_OPS);
+        }
+
+        private long measureAll(IntConsumer op, int warmup, int ops) {
+            for (int i = 0; i < warmup; i++) op.accept(i);
+            long before = allocatedByAllThreads();
+            for (int i = warmup; i < warmup + ops; i++) op.accept(i);
+            return (allocatedByAllThreads() - before) / ops;
+        }
+
+        private JsonObject post(JsonObject json) {
+            CoapResponse resp = gateway.advanced(newPost(json));
+            return (resp != null && resp.getPayload() != null) ? PayloadDecoder.decodeObject(resp.getPayload()) : null;
+        }
+
+        private static Request newPost(JsonObject json) {
+            Request request = Request.newPost();
+            request.setPayload(Constants.jsonToBytes(json));
+            return request;
+        }
+
+        private static void await(Semaphore semaphore) {
+            try {
+                if (!semaphore.tryAcquire(5, TimeUnit.SECONDS)) throw new IllegalStateException("No notification");
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void close() {
+            endpoint.destroy();
+            server.destroy();
+            broker.stop();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package org.dsa.iot.coap.bench;
+
+import org.dsa.iot.coap.resources.SidValueStore;
+import org.dsa.iot.dslink.util.json.JsonArray;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Heap used by subscription last values: a map of sid to the update JSON, as the
+ * gateway used to keep them, against the columnar SidValueStore.
+ *
+ * Usage: StoreMemoryBenchmark [points, default 1000000] [string share in percent, default 10]
+ * Run with a fixed heap (-Xms = -Xmx) for stable numbers.
+ */
+public class StoreMemoryBenchmark {
+
+    private static final String TS = "2018-01-15T10:20:30.123-08:00";
+
+    public static void main(String[] args) {
+        int points = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        int stringShare = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+
+        long base = usedHeap();
+        Map<Integer, Object> map = new ConcurrentHashMap<>();
+        for (int sid = 1; sid <= points; sid++) {
+            map.put(sid, makeUpdate(sid, stringShare));
+        }
+        long mapBytes = usedHeap() - base;
+        System.out.println(map.size() + " points in a map: " + format(mapBytes, points));
+        map = null;
+
+        base = usedHeap();
+        SidValueStore store = new SidValueStore();
+        for (int sid = 1; sid <= points; sid++) {
+            store.put(makeUpdate(sid, stringShare));
+        }
+        long storeBytes = usedHeap() - base;
+        System.out.println(store.getSequence() + " points in a SidValueStore: " + format(storeBytes, points));
+        System.out.printf("ratio: %.1fx%n", (double) mapBytes / Math.max(storeBytes, 1));
+    }
+
+    private static JsonArray makeUpdate(int sid, int stringShare) {
+        Object value = (sid % 100 < stringShare) ? ("state " + sid) : (Object) (sid * 0.5);
+        //A fresh timestamp string per update, as parsed off the wire
+        return new JsonArray().add(sid).add(value).add(new String(TS));
+    }
+
+    private static String format(long bytes, int points) {
+        return String.format("%.1f MB, %.1f bytes per point", bytes / 1048576.0, (double) bytes / points);
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        //Repeat until a collection no longer frees anything
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            long now = rt.totalMemory() - rt.freeMemory();
+            if (now >= used) break;
+            used = now;
+        }
+        return used;
+    }
+}
@@ -3,34 +3,58 @@ package org.dsa.iot.coap.controllers;
 import org.dsa.iot.coap.CoapLinkHandler;
 import org.dsa.iot.coap.Constants;
 import org.dsa.iot.coap.handlers.coap.AsynchListener;
+import org.dsa.iot.coap.handlers.dsa.RemoteListCache;
+import org.dsa.iot.coap.handlers.dsa.RemoteSubscriptionTable;
+import org.dsa.iot.coap.handlers.dsa.SetCoalescer;
+import org.dsa.iot.coap.tracing.EventRecorder;
+import org.dsa.iot.coap.tracing.Trace;
+import org.dsa.iot.coap.tracing.Tracer;
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.Permission;
 import org.dsa.iot.dslink.node.actions.Action;
 import org.dsa.iot.dslink.node.actions.ActionResult;
 import org.dsa.iot.dslink.node.value.Value;
 import org.dsa.iot.dslink.node.value.ValueType;
-import org.dsa.iot.dslink.util.Objects;
 import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.dslink.util.json.JsonArray;
 import org.dsa.iot.dslink.util.json.JsonObject;
 import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
 import org.eclipse.californium.core.CoapObserveRelation;
 import org.eclipse.californium.core.CoapResponse;
 import org.eclipse.californium.core.Utils;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MessageObserverAdapter;
+import org.eclipse.californium.core.coap.Option;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.network.CoapEndpoint;
 import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.EndpointManager;
+import org.eclipse.californium.core.network.config.NetworkConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class CoapClientController {
 
-    private static final int RETRIES = 50;
+    private static final int RETRIES = 5;
+    private static final long MAX_UNAVAILABLE_WAIT = 10000;
     private static final Logger LOG = LoggerFactory.getLogger(CoapClientController.class);
 
     private Node node;
@@ -38,14 +62,39 @@ public class CoapClientController {
     private CoapLinkHandler coapLinkHandler;
 
     private Endpoint endpoint;
+    private Endpoint controlEndpoint;
+    //Not the controller itself, connect() holds that during the whole handshake
+    private final Object endpointLock = new Object();
+    private final Set<Observation> observations = ConcurrentHashMap.newKeySet();
+    private volatile Observation rid0Observation;
 
     private ScheduledFuture connectionFuture;
+    //The one connect of this node that is scheduled or running, see scheduleConnect
+    private CompletableFuture<Boolean> connecting;
+    private long connectAt;
+    private ScheduledFuture probeFuture;
+    private volatile boolean connected = false;
+    private volatile boolean deleted = false;
+    private volatile String peerId;
 
     private Map<String, CoapClient> clients = new ConcurrentHashMap<>();
+    private final RemoteListCache listCache;
+    private final RemoteSubscriptionTable subscriptions;
+    private final SetCoalescer setCoalescer;
+    private final CongestionController congestion = new CongestionController();
+    private final RemoteHealth health = new RemoteHealth();
+    private final RetryPolicy retryPolicy = new RetryPolicy();
+    //Rids sent to the remote, never the rids of the local broker
+    private final AtomicInteger lastRemoteRid = new AtomicInteger();
+    private final Map<Integer, Integer> localToRemoteRid = new ConcurrentHashMap<>();
+    private final Map<Integer, Integer> remoteToLocalRid = new ConcurrentHashMap<>();
 
     public CoapClientController(Node node, CoapLinkHandler coapLinkHandler) {
         this.node = node;
         this.coapLinkHandler = coapLinkHandler;
+        this.listCache = new RemoteListCache(this, coapLinkHandler);
+        this.subscriptions = new RemoteSubscriptionTable(coapLinkHandler);
+        this.setCoalescer = new SetCoalescer(this, coapLinkHandler);
     }
 
     private void initDefaultNodes() {
@@ -76,14 +125,59 @@ public class CoapClientController {
                     .build();
         }
 
-//        if (!node.hasChild("ping", false)) {
-//            node
-//                    .createChild("ping", false)
-//                    .setDisplayName("Ping")
-//                    .setSerializable(false)
-//                    .setAction(new Action(Permission.WRITE, new PingAction()))
-//                    .build();
-//        }
+        if (!node.hasChild("metrics", false)) {
+            Node metrics = node
+                    .createChild("metrics", false)
+                    .setDisplayName("Metrics")
+                    .setSerializable(false)
+                    .build();
+            metrics
+                    .createChild("rto", false)
+                    .setDisplayName("RTO (ms)")
+                    .setSerializable(false)
+                    .setValueType(ValueType.NUMBER)
+                    .setValue(new Value(CongestionController.INITIAL_RTO))
+                    .build();
+            metrics
+                    .createChild("window", false)
+                    .setDisplayName("Outstanding Window")
+                    .setSerializable(false)
+                    .setValueType(ValueType.NUMBER)
+                    .setValue(new Value(1))
+                    .build();
+            metrics
+                    .createChild("srtt", false)
+                    .setDisplayName("Smoothed RTT (ms)")
+                    .setSerializable(false)
+                    .setValueType(ValueType.NUMBER)
+                    .setValue(new Value(-1))
+                    .build();
+            metrics
+                    .createChild("health", false)
+                    .setDisplayName("Health")
+                    .setSerializable(false)
+                    .setValueType(ValueType.STRING)
+                    .setValue(new Value(health.getState().name()))
+                    .build();
+            metrics
+                    .createChild("circuit", false)
+                    .setDisplayName("Circuit")
+                    .setSerializable(false)
+                    .setValueType(ValueType.STRING)
+                    .setValue(new Value(retryPolicy.getState().name()))
+                    .build();
+        }
+
+        TransportConfig.initApplyAction(node, this::applyTransport);
+
+        if (!node.hasChild("ping", false)) {
+            node
+                    .createChild("ping", false)
+                    .setDisplayName("Ping")
+                    .setSerializable(false)
+                    .setAction(new Action(Permission.WRITE, new PingAction()))
+                    .build();
+        }
 
 //        if (!node.hasChild("post", false)) {
 //            node
@@ -108,36 +202,292 @@ public class CoapClientController {
 //        } catch (SocketException e) {
 //            System.err.println("Failed to initialize server: " + e.getMessage());
 //        }
-        Objects.getDaemonThreadPool().schedule(this::setupSubscriptionObserver, 0, TimeUnit.SECONDS);
+        connected = false;
+        if (isLazyConnect()) {
+            setStatus("Idle");
+            return;
+        }
+
+        setStatus("Connecting");
+        scheduleConnect(0);
+    }
+
+    public boolean isLazyConnect() {
+        Value lazy = node.getConfig(Constants.LAZY_CONNECT);
+        return lazy != null && lazy.getBool();
+    }
+
+    /**
+     * Make sure the handshake with the remote is done. Waits for a connect that is
+     * running, or starts one for the first request of a lazy node. A remote whose last
+     * handshake failed is retried on its backoff schedule, until then this fails at once.
+     *
+     * @return Whether the remote is connected
+     */
+    public boolean ensureConnected() {
+        if (connected) return true;
+        CompletableFuture<Boolean> attempt;
+        synchronized (this) {
+            if (isConnectPending() && connectAt > System.currentTimeMillis()) return false;
+            attempt = scheduleConnect(0);
+        }
+        try {
+            return attempt.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    private synchronized boolean isConnectPending() {
+        return connecting != null && !connecting.isDone();
+    }
+
+    /*
+     * Schedule a connect, unless one is pending already: then that one is returned, so
+     * however many requests and failures ask for it, a node has a single reconnect.
+     */
+    private synchronized CompletableFuture<Boolean> scheduleConnect(long delay) {
+        if (isConnectPending()) return connecting;
+        connecting = new CompletableFuture<>();
+        if (deleted) {
+            connecting.complete(false);
+            return connecting;
+        }
+        connectAt = System.currentTimeMillis() + delay;
+        connectionFuture = coapLinkHandler.getStartupExecutor().schedule(this::connect, delay, TimeUnit.MILLISECONDS);
+        return connecting;
+    }
+
+    private void connect() {
+        CompletableFuture<Boolean> attempt;
+        synchronized (this) {
+            attempt = connecting;
+        }
+        boolean done = connected;
+        if (!done) {
+            setStatus("Connecting");
+            try {
+                done = setupSubscriptionObserver();
+            } catch (RuntimeException e) {
+                LOG.warn("Handshake with {} failed", getUriPrefix(), e);
+            }
+            if (done) {
+                connected = true;
+                retryPolicy.reconnected();
+                setStatus(health.getState().getStatus());
+                startProbe();
+            }
+        }
+        attempt.complete(done);
+        if (!done) doError("Handshake failed");
+    }
+
+    /**
+     * Id the gateway keys the session of this node by, shared by its data and control
+     * endpoints. Kept in the node config, so the session outlives restarts of the link.
+     */
+    private String getPeerId() {
+        String id = peerId;
+        if (id == null) {
+            Value config = node.getConfig(Constants.PEER_ID);
+            if (config == null || config.getString() == null) {
+                config = new Value(UUID.randomUUID().toString());
+                node.setConfig(Constants.PEER_ID, config);
+            }
+            peerId = id = config.getString();
+        }
+        return id;
+    }
 
-        node.getChild("status", false).setValue(new Value("Ready"));
+    private void attachPeerId(Request request) {
+        request.getOptions().addOption(new Option(Constants.PEER_OPTION, getPeerId()));
+    }
+
+    private void setStatus(String status) {
+        Node statusNode = node.getChild("status", false);
+        if (statusNode != null) statusNode.setValue(new Value(status));
+    }
+
+    /**
+     * Interval of the background probe in seconds, 0 disables it.
+     */
+    public long getProbeInterval() {
+        Value interval = node.getConfig(Constants.PROBE_INTERVAL);
+        return (interval != null) ? interval.getNumber().longValue() : Constants.DEFAULT_PROBE_INTERVAL;
+    }
+
+    private void startProbe() {
+        if (probeFuture != null && !probeFuture.isDone()) return;
+        long interval = getProbeInterval();
+        if (interval <= 0) return;
+        probeFuture = coapLinkHandler.getProbeExecutor().scheduleWithFixedDelay(this::probe,
+                interval, interval, TimeUnit.SECONDS);
+    }
+
+    private void stopProbe() {
+        if (probeFuture != null) {
+            probeFuture.cancel(false);
+            probeFuture = null;
+        }
+    }
+
+    /**
+     * Ping the remote with an empty CON through the control endpoint. Answered probes
+     * feed the RTT estimator behind the request timeouts, the outcome moves the health
+     * state shown on the status node. Nothing blocks, the answer or the deadline
+     * completes the probe.
+     */
+    private void probe() {
+        RemoteHealth.State before = health.getState();
+        double srtt = congestion.getSmoothedRtt();
+        long start = System.currentTimeMillis();
+        AtomicBoolean done = new AtomicBoolean(false);
+        Request request = new Request(null, CoAP.Type.CON);
+        request.setToken(new byte[0]);
+        request.setURI(getUriPrefix());
+        ScheduledFuture deadline = coapLinkHandler.getProbeExecutor().schedule(() -> {
+            if (!done.compareAndSet(false, true)) return;
+            request.cancel();
+            probed(before, health.onProbeFailed());
+        }, congestion.getRto(), TimeUnit.MILLISECONDS);
+        request.addMessageObserver(new MessageObserverAdapter() {
+            //An empty CON is answered with a reset
+            @Override
+            public void onReject() {
+                if (!done.compareAndSet(false, true)) return;
+                deadline.cancel(false);
+                long rtt = System.currentTimeMillis() - start;
+                RemoteHealth.State state = health.onProbe(rtt, srtt);
+                congestion.onProbe(rtt);
+                probed(before, state);
+            }
+
+            @Override
+            public void onTimeout() {
+                if (!done.compareAndSet(false, true)) return;
+                deadline.cancel(false);
+                probed(before, health.onProbeFailed());
+            }
+        });
+        request.send(getControlEndpoint());
     }
 
-    private void setupSubscriptionObserver() {
+    private void probed(RemoteHealth.State before, RemoteHealth.State state) {
+        if (connected) setStatus(state.getStatus());
+        updateMetrics();
+        //The gateway may have restarted or dropped the session while it was unreachable
+        if (before == RemoteHealth.State.DOWN && state != RemoteHealth.State.DOWN) {
+            reconnect("remote is back up");
+        }
+    }
+
+    /*
+     * Handshake again, the resync tells the gateway which sids this node still holds and
+     * it subscribes whatever it lost. Nothing else would: a node that stays up while the
+     * gateway restarts never connects again on its own.
+     */
+    private void reconnect(String reason) {
+        if (!connected || deleted) return;
+        LOG.info("Handshaking with {} again, {}", getUriPrefix(), reason);
+        connected = false;
+        scheduleConnect(0);
+    }
+
+    private boolean setupSubscriptionObserver() {
         JsonObject ridReq = new JsonObject();
         ridReq.put(Constants.GIMME, Constants.RID_ZERO_HANDLE);
-        CoapResponse resp = postToRemote(ridReq);
-        JsonObject cont = Constants.extractPayloadObject(resp);
+        Response resp = postControl(ridReq);
+        JsonObject cont = (resp != null) ? Constants.extractPayloadObject(resp) : null;
+        if (cont == null || cont.get(Constants.GIMME) == null) return false;
         String rid0ID = cont.get(Constants.GIMME);
 
         String uri = getUriPrefix() + rid0ID;
-        CoapClient client = new CoapClient(uri);
-        CoapObserveRelation observation = client.observe(new AsynchListener(coapLinkHandler));
-        coapLinkHandler.add0Observer(observation);
+        if (rid0Observation != null) rid0Observation.proactiveCancel();
+        Rid0Handler handler = new Rid0Handler(new AsynchListener(coapLinkHandler, subscriptions));
+        rid0Observation = observe(uri, handler);
+        handler.observation = rid0Observation;
+        coapLinkHandler.add0Observer(rid0Observation);
+        resyncSubscriptions();
+        return true;
+    }
+
+    /**
+     * Tell the gateway which remote sids this node still holds. A gateway that restarted
+     * without its persisted mappings answers with the ones it lost, only those get
+     * subscribed again.
+     */
+    private void resyncSubscriptions() {
+        JsonArray sids = subscriptions.getRemoteSids();
+        if (sids.size() == 0) return;
+        JsonObject resyncReq = new JsonObject();
+        resyncReq.put(Constants.GIMME, Constants.RESYNC);
+        resyncReq.put("sids", sids);
+        Response resp = postControl(resyncReq);
+        JsonObject cont = (resp != null) ? Constants.extractPayloadObject(resp) : null;
+        JsonArray missing = (cont != null) ? cont.get("missing") : null;
+        if (missing == null || missing.size() == 0) return;
+        JsonArray paths = subscriptions.getPathEntries(missing);
+        if (paths.size() > 0) {
+            postControl(Constants.createSubReq(paths, genRemoteRid()));
+        }
+    }
+
+    /**
+     * Observe a resource of the remote through the data endpoint of this node.
+     */
+    public Observation observe(String uri, CoapHandler handler) {
+        Observation observation = new Observation(uri, handler);
+        observations.add(observation);
+        observation.observe();
+        return observation;
     }
 
-    private void makeEndpoint() {
-        if (endpoint != null) {
-            endpoint.stop();
-            endpoint.clear();
-            endpoint = null;
+    /**
+     * Rebuild the endpoints with the transport settings of the node. They bind to the
+     * same local ports again, so the gateway keeps the sessions and every stream behind
+     * them, only the observe relations are registered anew.
+     */
+    private void applyTransport() {
+        NetworkConfig config = TransportConfig.forClient(node);
+        synchronized (endpointLock) {
+            InetSocketAddress dataAddress = (endpoint != null) ? endpoint.getAddress() : null;
+            InetSocketAddress controlAddress = (controlEndpoint != null) ? controlEndpoint.getAddress() : null;
+            if (endpoint != null) endpoint.destroy();
+            if (controlEndpoint != null) controlEndpoint.destroy();
+            endpoint = startEndpoint(dataAddress, config, null);
+            controlEndpoint = startEndpoint(controlAddress, config, coapLinkHandler.getControlExecutor());
+        }
+        for (Observation observation : observations) {
+            observation.observe();
         }
+    }
 
-        endpoint = new CoapEndpoint();
-        //endpoint.setExecutor(executor);
+    private Endpoint startEndpoint(InetSocketAddress address, NetworkConfig config, ScheduledExecutorService executor) {
+        CoapEndpoint ep = new CoapEndpoint((address != null) ? address : new InetSocketAddress(0), config);
+        if (executor != null) ep.setExecutor(executor);
+        try {
+            ep.start();
+            return ep;
+        } catch (IOException e) {
+            if (address != null) {
+                LOG.warn("Failed to bind {} again, using a new port", address);
+                return startEndpoint(null, config, executor);
+            }
+            LOG.warn("Failed to start endpoint", e);
+            return null;
+        }
+    }
 
-        for (CoapClient client : clients.values()) {
-            client.setEndpoint(endpoint);
+    private Endpoint getDataEndpoint() {
+        synchronized (endpointLock) {
+            if (endpoint == null) {
+                endpoint = startEndpoint(null, TransportConfig.forClient(node), null);
+                if (endpoint == null) return EndpointManager.getEndpointManager().getDefaultEndpoint();
+            }
+            return endpoint;
         }
     }
 
@@ -159,24 +509,293 @@ public class CoapClientController {
         return clients.get(path);
     }
 
-    public void doError(String msg) {
+    public synchronized void doError(String msg) {
+        connected = false;
         node.removeChild("broker", false);
 
-        node.getChild("status", false).setValue(new Value(msg));
+        setStatus(msg);
 
-        connectionFuture = Objects.getDaemonThreadPool().schedule(this::init, 2, TimeUnit.SECONDS);
+        //Backs off while the remote keeps failing, so a flapping remote doesn't get a handshake burst every 2 seconds
+        if (!isConnectPending()) scheduleConnect(retryPolicy.nextReconnectDelay());
     }
 
-    public CoapResponse postToRemote(JsonObject json) {
+    public Response postToRemote(JsonObject json) {
         //System.out.println("Sent: " + json); //DEBUG
+        //Retries are wasted on a remote the probe has given up on
+        if (health.isDown()) return null;
         byte[] input = Constants.jsonToBytes(json);
-        CoapResponse resp = null;
-        int tries = 0;
-        while (resp == null && tries++ < RETRIES) resp = getClient().post(input, 0);
+        String url = getClient().getURI();
+
+        Response resp;
+        try {
+            resp = post(input, url, false);
+        } finally {
+            updateMetrics();
+        }
         //System.out.println("Got response to: " + json + "\n" + resp); //DEBUG
         return resp;
     }
 
+    /**
+     * Post a control message (close, unsubscribe, subscribe, handshakes) to the control
+     * resource of the gateway. Control messages use their own endpoint and skip the
+     * congestion window, so they are never stuck behind data requests.
+     */
+    public Response postControl(JsonObject json) {
+        if (health.isDown()) return null;
+        byte[] input = Constants.jsonToBytes(json);
+        Response resp = post(input, getUriPrefix() + Constants.CONTROL_SERVER_NAME, true);
+        if (resp != null && resp.getCode() == CoAP.ResponseCode.NOT_FOUND) {
+            LOG.warn("Gateway at {} has no control resource", getUriPrefix());
+        }
+        updateMetrics();
+        return resp;
+    }
+
+    private Response post(byte[] input, String url, boolean control) {
+        if (!retryPolicy.allowRequest()) return null;
+        Post post = new Post(input, url, control, Tracer.current());
+        post.next(0);
+        try {
+            return post.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            //Stops the tries still to come
+            post.result.complete(null);
+            return null;
+        } catch (ExecutionException e) {
+            LOG.warn("Request failed", e.getCause());
+            return null;
+        }
+    }
+
+    /*
+     * One request to the remote and its retries. No thread waits between tries: the
+     * deadline of a try and the delay before the next are scheduled on the retry
+     * executor, answers arrive through a MessageObserver. A data request holds a window
+     * slot only while a try is in flight.
+     */
+    private class Post {
+        private final byte[] input;
+        private final String url;
+        private final boolean control;
+        private final Trace trace;
+        private final CompletableFuture<Response> result = new CompletableFuture<>();
+        private final long first = System.currentTimeMillis();
+        private long timeout = congestion.getRto();
+        private int tries = 0;
+        private boolean retrying = false;
+
+        Post(byte[] input, String url, boolean control, Trace trace) {
+            this.input = input;
+            this.url = url;
+            this.control = control;
+            this.trace = trace;
+        }
+
+        void next(long delay) {
+            if (++tries > RETRIES) {
+                finish(null);
+                return;
+            }
+            if (tries > 1) {
+                //Retries to one remote share a budget, a flapping remote can't keep every caller busy
+                if (!retrying) {
+                    if (!retryPolicy.tryAcquireRetry()) {
+                        finish(null);
+                        return;
+                    }
+                    retrying = true;
+                }
+                delay = Math.max(delay, RetryPolicy.retryDelay(tries - 1));
+            }
+            if (delay > 0) {
+                coapLinkHandler.getRetryExecutor().schedule(this::send, delay, TimeUnit.MILLISECONDS);
+            } else {
+                send();
+            }
+        }
+
+        private void send() {
+            if (result.isDone()) {
+                finish(null);
+            } else if (control) {
+                transmit();
+            } else {
+                congestion.acquire(this::transmit);
+            }
+        }
+
+        private void transmit() {
+            if (result.isDone()) {
+                if (!control) congestion.release();
+                finish(null);
+                return;
+            }
+            Request request = Request.newPost();
+            request.setURI(url);
+            request.setPayload(input);
+            attachPeerId(request);
+            Tracer.attach(request.getOptions(), trace);
+            AtomicBoolean done = new AtomicBoolean(false);
+            ScheduledFuture deadline = coapLinkHandler.getRetryExecutor().schedule(() -> {
+                if (!done.compareAndSet(false, true)) return;
+                request.cancel();
+                failed();
+            }, timeout, TimeUnit.MILLISECONDS);
+            request.addMessageObserver(new MessageObserverAdapter() {
+                @Override
+                public void onResponse(Response response) {
+                    if (!done.compareAndSet(false, true)) return;
+                    deadline.cancel(false);
+                    answered(response);
+                }
+
+                @Override
+                public void onReject() {
+                    if (!done.compareAndSet(false, true)) return;
+                    deadline.cancel(false);
+                    failed();
+                }
+            });
+            //Resolved on every try, the endpoints may have been rebuilt meanwhile
+            request.send(control ? getControlEndpoint() : getDataEndpoint());
+        }
+
+        private void failed() {
+            if (!control) congestion.release();
+            EventRecorder.record(EventRecorder.Type.RETRY, tries, timeout);
+            congestion.onTimeout();
+            timeout = CongestionController.backoff(timeout);
+            next(0);
+        }
+
+        private void answered(Response response) {
+            congestion.onResponse(System.currentTimeMillis() - first, tries);
+            if (!control) congestion.release();
+            //The gateway is over its limits for us, wait as long as it asks before retrying
+            if (response.getCode() == CoAP.ResponseCode.SERVICE_UNAVAILABLE && tries < RETRIES) {
+                Long maxAge = response.getOptions().getMaxAge();
+                next(Math.min((maxAge != null) ? maxAge * 1000 : timeout, MAX_UNAVAILABLE_WAIT));
+                return;
+            }
+            finish(response);
+        }
+
+        private void finish(Response response) {
+            if (retrying) {
+                retrying = false;
+                retryPolicy.releaseRetry();
+            }
+            //An overloaded remote counts against the breaker like an unreachable one
+            if (response != null && response.getCode() != CoAP.ResponseCode.SERVICE_UNAVAILABLE) {
+                retryPolicy.onSuccess();
+            } else {
+                retryPolicy.onFailure();
+            }
+            if (response != null && trace != null) trace.stage(Tracer.CLIENT_REQUEST);
+            result.complete(response);
+        }
+    }
+
+    private Endpoint getControlEndpoint() {
+        synchronized (endpointLock) {
+            if (controlEndpoint == null) {
+                controlEndpoint = startEndpoint(null, TransportConfig.forClient(node), coapLinkHandler.getControlExecutor());
+                if (controlEndpoint == null) {
+                    LOG.warn("Failed to start control endpoint, using the data endpoint");
+                    return getDataEndpoint();
+                }
+            }
+            return controlEndpoint;
+        }
+    }
+
+    private void updateMetrics() {
+        Node metrics = node.getChild("metrics", false);
+        if (metrics == null) return;
+        metrics.getChild("rto", false).setValue(new Value(congestion.getRto()));
+        metrics.getChild("window", false).setValue(new Value(congestion.getWindow()));
+        metrics.getChild("srtt", false).setValue(new Value(Math.round(congestion.getSmoothedRtt())));
+        metrics.getChild("health", false).setValue(new Value(health.getState().name()));
+        metrics.getChild("circuit", false).setValue(new Value(retryPolicy.getState().name()));
+    }
+
+    public RemoteSubscriptionTable getSubscriptions() {
+        return subscriptions;
+    }
+
+    public SetCoalescer getSetCoalescer() {
+        return setCoalescer;
+    }
+
+    /**
+     * Whether sets to the remote path may be coalesced. Controlled by the coalesce_sets
+     * flag of the node and the comma separated path prefixes in coalesce_exclude.
+     */
+    public boolean isCoalescingSets(String remotePath) {
+        Value enabled = node.getConfig(Constants.COALESCE_SETS);
+        if (enabled != null && !enabled.getBool()) return false;
+        Value exclude = node.getConfig(Constants.COALESCE_EXCLUDE);
+        if (exclude == null || exclude.getString() == null) return true;
+        for (String prefix : exclude.getString().split(",")) {
+            prefix = prefix.trim();
+            if (!prefix.isEmpty() && remotePath.startsWith(prefix)) return false;
+        }
+        return true;
+    }
+
+    public RemoteListCache getListCache() {
+        return listCache;
+    }
+
+    /**
+     * Next rid of the rid space of this remote, for requests no local rid waits on.
+     */
+    public int genRemoteRid() {
+        return lastRemoteRid.updateAndGet(rid -> (rid == Integer.MAX_VALUE) ? 1 : rid + 1);
+    }
+
+    /**
+     * Rid a request of the local broker is forwarded under, allocated on first use.
+     */
+    public int mapRid(int localRid) {
+        return localToRemoteRid.computeIfAbsent(localRid, r -> {
+            int remoteRid = genRemoteRid();
+            remoteToLocalRid.put(remoteRid, localRid);
+            return remoteRid;
+        });
+    }
+
+    /**
+     * Forget the remote rid of a local rid once its request is done.
+     *
+     * @return The remote rid or null if the local rid was not forwarded
+     */
+    public Integer releaseRid(int localRid) {
+        Integer remoteRid = localToRemoteRid.remove(localRid);
+        if (remoteRid != null) remoteToLocalRid.remove(remoteRid, localRid);
+        return remoteRid;
+    }
+
+    /**
+     * Put the local rid back into a response of the remote.
+     */
+    public JsonObject toLocal(JsonObject response) {
+        Object remoteRid = response.get("rid");
+        Integer localRid = (remoteRid instanceof Number) ? remoteToLocalRid.get(((Number) remoteRid).intValue()) : null;
+        if (localRid != null) response.put("rid", localRid);
+        return response;
+    }
+
+    /**
+     * Time in milliseconds a shared remote list stream is kept open after its last local rid closed.
+     */
+    public long getListLinger() {
+        Value linger = node.getConfig(Constants.LIST_LINGER);
+        return (linger != null) ? linger.getNumber().longValue() : Constants.DEFAULT_LIST_LINGER;
+    }
+
     public String getUriPrefix() {
         return node.getConfig("coap_url").getString() + "/";
     }
@@ -201,16 +820,92 @@ public class CoapClientController {
         return client;
     }
 
+    /**
+     * Observe relation that outlives endpoint rebuilds, see applyTransport.
+     */
+    public class Observation {
+        private final String uri;
+        private final CoapHandler handler;
+        private volatile CoapObserveRelation relation;
+
+        private Observation(String uri, CoapHandler handler) {
+            this.uri = uri;
+            this.handler = handler;
+        }
+
+        private void observe() {
+            CoapClient client = new CoapClient(uri);
+            client.setEndpoint(getDataEndpoint());
+            Request request = Request.newGet();
+            request.setURI(uri);
+            request.setObserve();
+            attachPeerId(request);
+            relation = client.observe(request, handler);
+        }
+
+        public void proactiveCancel() {
+            observations.remove(this);
+            CoapObserveRelation current = relation;
+            if (current != null) current.proactiveCancel();
+        }
+    }
+
+    /*
+     * Passes rid 0 notifications on and watches for the observation being lost: an error
+     * in place of a notification means the gateway no longer has the rid 0 resource.
+     */
+    private class Rid0Handler implements CoapHandler {
+        private final CoapHandler listener;
+        private volatile Observation observation;
+
+        private Rid0Handler(CoapHandler listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void onLoad(CoapResponse response) {
+            if (response.isSuccess()) {
+                listener.onLoad(response);
+            } else {
+                lost();
+            }
+        }
+
+        @Override
+        public void onError() {
+            lost();
+        }
+
+        private void lost() {
+            //A replaced observation going away is expected
+            if (observation == rid0Observation) reconnect("rid 0 observation lost");
+        }
+    }
+
     public class DeleteCoapClientAction implements Handler<ActionResult> {
 
         @Override
         public void handle(ActionResult event) {
-            if (connectionFuture != null && !connectionFuture.isDone()) {
-                connectionFuture.cancel(true);
+            synchronized (CoapClientController.this) {
+                deleted = true;
+                if (connectionFuture != null && !connectionFuture.isDone()) {
+                    connectionFuture.cancel(true);
+                }
+                //Requests waiting for the connect stop waiting
+                if (connecting != null) connecting.complete(false);
             }
-
-            if (endpoint != null) {
-                endpoint.destroy();
+            stopProbe();
+
+            observations.clear();
+            synchronized (endpointLock) {
+                if (endpoint != null) {
+                    endpoint.destroy();
+                    endpoint = null;
+                }
+                if (controlEndpoint != null) {
+                    controlEndpoint.destroy();
+                    controlEndpoint = null;
+                }
             }
 
             node.delete(false);
@@ -225,7 +920,7 @@ public class CoapClientController {
 
         @Override
         public void handle(ActionResult event) {
-            helloWorldGET();
+            coapLinkHandler.getProbeExecutor().execute(CoapClientController.this::probe);
         }
     }
 
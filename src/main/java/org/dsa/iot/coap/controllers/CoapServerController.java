@@ -31,6 +31,8 @@ public class CoapServerController {
                     .build();
         }
 
+        TransportConfig.initApplyAction(node, this::applyTransport);
+
         if (!node.hasChild("status", false)) {
             node
                     .createChild("status", false)
@@ -48,7 +50,7 @@ public class CoapServerController {
         try {
             port = node.getConfig("coap_port").getNumber().intValue();
             server = new DSACoapServer(node);
-            server.addEndpoints(port);
+            server.addEndpoints(port, TransportConfig.fromNode(node));
             server.start();
         } catch (SocketException e) {
             System.err.println("Failed to initialize server: " + e.getMessage());
@@ -57,6 +59,10 @@ public class CoapServerController {
         setStatus("Server Started");
     }
 
+    private void applyTransport() {
+        if (server != null) server.rebuildEndpoints(TransportConfig.fromNode(node));
+    }
+
     public void setStatus(String name) {
         Node statusNode = node.getChild("status", false);
         if (statusNode != null) {
@@ -69,6 +75,7 @@ public class CoapServerController {
         public void handle(ActionResult event) {
             if (server != null) {
                 server.stop();
+                server.closeSessions();
             }
 
             node.delete(false);
@@ -0,0 +1,172 @@
+package org.dsa.iot.coap.controllers;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Per remote congestion control, modelled after CoCoA (draft-ietf-core-cocoa).
+ * Keeps a strong RTT estimator fed by exchanges answered on the first transmission
+ * and a weak one fed by retransmitted exchanges, derives the RTO from both and
+ * bounds the number of outstanding CON requests to the remote.
+ */
+public class CongestionController {
+
+    public static final long INITIAL_RTO = 2000;
+    private static final long MIN_RTO = 200;
+    static final long MAX_RTO = 60000;
+    private static final int MAX_WINDOW = 4;
+
+    private static final double ALPHA = 0.25;
+    private static final double BETA = 0.125;
+    private static final int K_STRONG = 4;
+    private static final int K_WEAK = 1;
+
+    private double strongRtt = -1;
+    private double strongVar;
+    private double weakRtt = -1;
+    private double weakVar;
+    private double rto = INITIAL_RTO;
+    private long lastUpdate = System.currentTimeMillis();
+
+    private int window = 1;
+    private int outstanding = 0;
+    private int cleanRounds = 0;
+    private final Deque<Runnable> waiting = new ArrayDeque<>();
+
+    /**
+     * Run the task once a slot in the outstanding window is free: right away if there
+     * is one, otherwise on the thread releasing it. The task owns the slot and must
+     * release it.
+     */
+    public void acquire(Runnable task) {
+        synchronized (this) {
+            if (outstanding >= window) {
+                waiting.add(task);
+                return;
+            }
+            outstanding++;
+        }
+        task.run();
+    }
+
+    public void release() {
+        List<Runnable> next = new ArrayList<>();
+        synchronized (this) {
+            outstanding--;
+            //The window may have grown meanwhile, hand out every free slot
+            while (outstanding < window && !waiting.isEmpty()) {
+                outstanding++;
+                next.add(waiting.poll());
+            }
+        }
+        for (Runnable task : next) {
+            task.run();
+        }
+    }
+
+    public synchronized long getRto() {
+        //RTOs far from the initial value age back towards it when the remote is idle
+        long idle = System.currentTimeMillis() - lastUpdate;
+        if (idle > 16 * rto && rto < 1000) {
+            rto = 1000;
+        } else if (idle > 4 * rto && rto > 3000) {
+            rto = (rto + 2 * INITIAL_RTO) / 3;
+        }
+        return (long) rto;
+    }
+
+    /**
+     * @return Smoothed RTT of first transmissions and probes in ms, -1 before the first sample
+     */
+    public synchronized double getSmoothedRtt() {
+        return strongRtt;
+    }
+
+    public synchronized double getRttVariance() {
+        return strongVar;
+    }
+
+    public synchronized int getWindow() {
+        return window;
+    }
+
+    public synchronized int getOutstanding() {
+        return outstanding;
+    }
+
+    /**
+     * Next timeout after the given one has expired. Short timeouts back off faster
+     * than long ones, as in CoCoA's variable backoff factor.
+     */
+    public static long backoff(long timeout) {
+        double factor;
+        if (timeout < 1000) factor = 3;
+        else if (timeout > 3000) factor = 1.5;
+        else factor = 2;
+        return Math.min((long) (timeout * factor), MAX_RTO);
+    }
+
+    /**
+     * Record a response.
+     *
+     * @param rtt     Time since the first transmission of the request
+     * @param attempt Transmission that got answered, starting with 1
+     */
+    public synchronized void onResponse(long rtt, int attempt) {
+        double estimate;
+        if (attempt == 1) {
+            updateStrong(rtt);
+        } else {
+            if (weakRtt < 0) {
+                weakRtt = rtt;
+                weakVar = rtt / 2.0;
+            } else {
+                weakVar = (1 - BETA) * weakVar + BETA * Math.abs(weakRtt - rtt);
+                weakRtt = (1 - ALPHA) * weakRtt + ALPHA * rtt;
+            }
+            estimate = weakRtt + K_WEAK * weakVar;
+            rto = 0.25 * estimate + 0.75 * rto;
+            rto = Math.max(MIN_RTO, Math.min(MAX_RTO, rto));
+            lastUpdate = System.currentTimeMillis();
+        }
+
+        //Open the window only while the link answers first transmissions with a stable RTT
+        if (attempt == 1 && strongVar < strongRtt / 2) {
+            if (++cleanRounds >= window * 8 && window < MAX_WINDOW) {
+                window++;
+                cleanRounds = 0;
+            }
+        } else {
+            cleanRounds = 0;
+        }
+    }
+
+    /**
+     * Record the RTT of an answered probe. Probes feed the strong estimator like first
+     * transmissions but leave the window alone.
+     */
+    public synchronized void onProbe(long rtt) {
+        updateStrong(rtt);
+    }
+
+    private void updateStrong(long rtt) {
+        if (strongRtt < 0) {
+            strongRtt = rtt;
+            strongVar = rtt / 2.0;
+        } else {
+            strongVar = (1 - BETA) * strongVar + BETA * Math.abs(strongRtt - rtt);
+            strongRtt = (1 - ALPHA) * strongRtt + ALPHA * rtt;
+        }
+        double estimate = strongRtt + K_STRONG * strongVar;
+        rto = 0.5 * estimate + 0.5 * rto;
+        rto = Math.max(MIN_RTO, Math.min(MAX_RTO, rto));
+        lastUpdate = System.currentTimeMillis();
+    }
+
+    public synchronized void onTimeout() {
+        window = 1;
+        cleanRounds = 0;
+    }
+}
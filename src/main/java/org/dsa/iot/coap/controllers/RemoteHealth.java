@@ -0,0 +1,64 @@
+package org.dsa.iot.coap.controllers;
+
+/**
+ * Health of a remote as seen by the background probe of its controller. One missed
+ * probe, or a probe far slower than the smoothed RTT, degrades the remote; a run of
+ * missed probes takes it down until the next answered one.
+ */
+public class RemoteHealth {
+
+    public enum State {
+        UP("Connected"),
+        DEGRADED("Degraded"),
+        DOWN("Down");
+
+        private final String status;
+
+        State(String status) {
+            this.status = status;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+    }
+
+    static final int DOWN_AFTER = 3;
+    //A probe slower than this many smoothed RTTs counts as degraded
+    private static final double SLOW_FACTOR = 4;
+    //Below this a slow probe is noise, not degradation
+    private static final long SLOW_FLOOR = 200;
+
+    private State state = State.UP;
+    private int failures = 0;
+
+    /**
+     * @param rtt Round trip of the answered probe in ms
+     * @param srtt Smoothed RTT before this probe, -1 when unknown
+     * @return The new state
+     */
+    public synchronized State onProbe(long rtt, double srtt) {
+        failures = 0;
+        boolean slow = srtt > 0 && rtt > SLOW_FLOOR && rtt > SLOW_FACTOR * srtt;
+        state = slow ? State.DEGRADED : State.UP;
+        return state;
+    }
+
+    public synchronized State onProbeFailed() {
+        state = (++failures >= DOWN_AFTER) ? State.DOWN : State.DEGRADED;
+        return state;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized boolean isDown() {
+        return state == State.DOWN;
+    }
+
+    public synchronized void reset() {
+        state = State.UP;
+        failures = 0;
+    }
+}
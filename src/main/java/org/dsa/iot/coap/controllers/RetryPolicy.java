@@ -0,0 +1,120 @@
+package org.dsa.iot.coap.controllers;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Per remote retry policy: jittered exponential backoff between retries and between
+ * reconnects, and a circuit breaker over request outcomes. The breaker opens after a
+ * run of failed requests and fails requests at once while open. Once the open time
+ * has passed a single request goes through as a trial, its outcome closes the breaker
+ * or opens it again for twice as long. A budget bounds how many requests to the
+ * remote may be retrying at once.
+ */
+public class RetryPolicy {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private static final long RETRY_BASE = 100;
+    private static final long RETRY_CAP = 5000;
+    private static final long RECONNECT_BASE = 2000;
+    private static final long RECONNECT_CAP = 60000;
+    private static final int OPEN_AFTER = 5;
+    private static final long MIN_OPEN = 2000;
+    private static final long MAX_OPEN = 60000;
+    private static final int MAX_RETRYING = 8;
+
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long openTime = MIN_OPEN;
+    private long openUntil;
+    private boolean trialInFlight = false;
+    private int reconnects = 0;
+    private final Semaphore retryBudget = new Semaphore(MAX_RETRYING);
+
+    /**
+     * @return Whether a request may go into its retry phase, if so it must call releaseRetry when done
+     */
+    public boolean tryAcquireRetry() {
+        return retryBudget.tryAcquire();
+    }
+
+    public void releaseRetry() {
+        retryBudget.release();
+    }
+
+    /**
+     * Delay before the given retry of a request, 1 for the first one.
+     */
+    public static long retryDelay(int retry) {
+        return jitter(RETRY_BASE, RETRY_CAP, retry);
+    }
+
+    /**
+     * Delay before the next reconnect, grows with every call until reconnected() resets it.
+     */
+    public synchronized long nextReconnectDelay() {
+        return jitter(RECONNECT_BASE, RECONNECT_CAP, ++reconnects);
+    }
+
+    public synchronized void reconnected() {
+        reconnects = 0;
+    }
+
+    //Equal jitter: half of the exponential delay is fixed, the other half random
+    private static long jitter(long base, long cap, int attempt) {
+        long delay = Math.min(cap, base << Math.min(attempt - 1, 20));
+        long half = delay / 2;
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    /**
+     * @return Whether a request to the remote may be sent now. A true while half open
+     *         makes the caller the trial and must be followed by onSuccess or onFailure.
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() < openUntil) return false;
+                state = State.HALF_OPEN;
+                trialInFlight = true;
+                return true;
+            default:
+                if (trialInFlight) return false;
+                trialInFlight = true;
+                return true;
+        }
+    }
+
+    public synchronized void onSuccess() {
+        state = State.CLOSED;
+        failures = 0;
+        openTime = MIN_OPEN;
+        trialInFlight = false;
+    }
+
+    public synchronized void onFailure() {
+        if (state == State.HALF_OPEN) {
+            openTime = Math.min(openTime * 2, MAX_OPEN);
+            open();
+        } else if (state == State.CLOSED && ++failures >= OPEN_AFTER) {
+            open();
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openUntil = System.currentTimeMillis() + openTime;
+        trialInFlight = false;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+}
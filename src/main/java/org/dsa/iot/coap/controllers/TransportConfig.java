@@ -0,0 +1,130 @@
+package org.dsa.iot.coap.controllers;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.Permission;
+import org.dsa.iot.dslink.node.actions.Action;
+import org.dsa.iot.dslink.node.actions.Parameter;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValueType;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+
+/**
+ * Californium transport settings kept in the config of a client or server node. A
+ * setting of 0 (or "default" for the deduplicator) leaves the value of the standard
+ * NetworkConfig in place.
+ */
+public class TransportConfig {
+
+    public static final String ACK_TIMEOUT = "ack_timeout";
+    public static final String MAX_RETRANSMIT = "max_retransmit";
+    public static final String EXCHANGE_LIFETIME = "exchange_lifetime";
+    public static final String DEDUPLICATOR = "deduplicator";
+    public static final String DEDUP_SWEEP_INTERVAL = "dedup_sweep_interval";
+    public static final String MAX_MESSAGE_SIZE = "max_message_size";
+    public static final String PREFERRED_BLOCK_SIZE = "preferred_block_size";
+    public static final String NOTIFICATION_CHECK_INTERVAL = "notification_check_interval";
+
+    public static final String APPLY_ACTION = "apply_transport";
+
+    private static final String DEDUP_DEFAULT = "default";
+    private static final String DEDUP_MARK_AND_SWEEP = "mark_and_sweep";
+    private static final String DEDUP_CROP_ROTATION = "crop_rotation";
+    private static final String DEDUP_NONE = "none";
+
+    private static final String[] NUMBERS = {
+            ACK_TIMEOUT, MAX_RETRANSMIT, EXCHANGE_LIFETIME, DEDUP_SWEEP_INTERVAL,
+            MAX_MESSAGE_SIZE, PREFERRED_BLOCK_SIZE, NOTIFICATION_CHECK_INTERVAL
+    };
+
+    /**
+     * @return Standard config with the overrides of the node applied
+     */
+    public static NetworkConfig fromNode(Node node) {
+        NetworkConfig config = NetworkConfig.createStandardWithoutFile();
+        long ackTimeout = getNumber(node, ACK_TIMEOUT);
+        if (ackTimeout > 0) config.setInt(NetworkConfig.Keys.ACK_TIMEOUT, (int) ackTimeout);
+        long retransmit = getNumber(node, MAX_RETRANSMIT);
+        if (retransmit > 0) config.setInt(NetworkConfig.Keys.MAX_RETRANSMIT, (int) retransmit);
+        long lifetime = getNumber(node, EXCHANGE_LIFETIME);
+        if (lifetime > 0) config.setLong(NetworkConfig.Keys.EXCHANGE_LIFETIME, lifetime);
+        long sweep = getNumber(node, DEDUP_SWEEP_INTERVAL);
+        if (sweep > 0) {
+            config.setLong(NetworkConfig.Keys.MARK_AND_SWEEP_INTERVAL, sweep);
+            config.setLong(NetworkConfig.Keys.CROP_ROTATION_PERIOD, sweep);
+        }
+        long messageSize = getNumber(node, MAX_MESSAGE_SIZE);
+        if (messageSize > 0) config.setInt(NetworkConfig.Keys.MAX_MESSAGE_SIZE, (int) messageSize);
+        long blockSize = getNumber(node, PREFERRED_BLOCK_SIZE);
+        if (blockSize > 0) config.setInt(NetworkConfig.Keys.PREFERRED_BLOCK_SIZE, (int) blockSize);
+        long check = getNumber(node, NOTIFICATION_CHECK_INTERVAL);
+        if (check > 0) config.setLong(NetworkConfig.Keys.NOTIFICATION_CHECK_INTERVAL_TIME, check);
+
+        Value dedup = node.getConfig(DEDUPLICATOR);
+        String mode = (dedup != null) ? dedup.getString() : DEDUP_DEFAULT;
+        if (DEDUP_MARK_AND_SWEEP.equals(mode)) {
+            config.setString(NetworkConfig.Keys.DEDUPLICATOR, NetworkConfig.Keys.DEDUPLICATOR_MARK_AND_SWEEP);
+        } else if (DEDUP_CROP_ROTATION.equals(mode)) {
+            config.setString(NetworkConfig.Keys.DEDUPLICATOR, NetworkConfig.Keys.DEDUPLICATOR_CROP_ROTATION);
+        } else if (DEDUP_NONE.equals(mode)) {
+            config.setString(NetworkConfig.Keys.DEDUPLICATOR, NetworkConfig.Keys.NO_DEDUPLICATOR);
+        }
+        return config;
+    }
+
+    /**
+     * Config for the endpoints of a client node. Requests there are retransmitted by
+     * CoapClientController with the RTO of its CongestionController, so Californium
+     * sends every CON once and outwaits any RTO. Otherwise an answer to a hidden
+     * retransmission would feed the strong RTT estimator. The ack_timeout and
+     * max_retransmit of a client node don't apply.
+     */
+    public static NetworkConfig forClient(Node node) {
+        NetworkConfig config = fromNode(node);
+        config.setInt(NetworkConfig.Keys.ACK_TIMEOUT, (int) (2 * CongestionController.MAX_RTO));
+        config.setFloat(NetworkConfig.Keys.ACK_RANDOM_FACTOR, 1f);
+        config.setInt(NetworkConfig.Keys.MAX_RETRANSMIT, 0);
+        return config;
+    }
+
+    /**
+     * Create or refresh the apply action of the node, its parameters default to the
+     * current settings.
+     *
+     * @param apply Rebuilds the endpoints of the node once the new settings are stored
+     */
+    public static void initApplyAction(Node node, Runnable apply) {
+        Action action = new Action(Permission.WRITE, event -> {
+            for (String key : NUMBERS) {
+                Value val = event.getParameter(key, new Value(0));
+                node.setConfig(key, new Value((val.getNumber() != null) ? val.getNumber().longValue() : 0));
+            }
+            node.setConfig(DEDUPLICATOR, event.getParameter(DEDUPLICATOR, new Value(DEDUP_DEFAULT)));
+            apply.run();
+            initApplyAction(node, apply);
+        });
+        for (String key : NUMBERS) {
+            action.addParameter(new Parameter(key, ValueType.NUMBER, new Value(getNumber(node, key))));
+        }
+        Value dedup = node.getConfig(DEDUPLICATOR);
+        action.addParameter(new Parameter(DEDUPLICATOR,
+                ValueType.makeEnum(DEDUP_DEFAULT, DEDUP_MARK_AND_SWEEP, DEDUP_CROP_ROTATION, DEDUP_NONE),
+                (dedup != null) ? dedup : new Value(DEDUP_DEFAULT)));
+
+        Node child = node.getChild(APPLY_ACTION, false);
+        if (child == null) {
+            node
+                    .createChild(APPLY_ACTION, false)
+                    .setDisplayName("Apply Transport Settings")
+                    .setSerializable(false)
+                    .setAction(action)
+                    .build();
+        } else {
+            child.setAction(action);
+        }
+    }
+
+    private static long getNumber(Node node, String key) {
+        Value val = node.getConfig(key);
+        return (val != null && val.getNumber() != null) ? val.getNumber().longValue() : 0;
+    }
+}
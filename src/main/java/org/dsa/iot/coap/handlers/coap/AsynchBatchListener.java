@@ -35,7 +35,7 @@ public class AsynchBatchListener implements CoapHandler {
             for (Object o : jsonAr) {
                 JsonObject json = (JsonObject) o;
                 //System.out.println("GOT MESSAGE:" + json); //DEBUG
-                linkHandler.getResponderLink().getWriter().writeResponse(json);
+                linkHandler.writeResponse(json);
                 //TODO: handle killing listeners on close and stream close
             }
         }
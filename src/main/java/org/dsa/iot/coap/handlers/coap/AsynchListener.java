@@ -2,9 +2,14 @@ package org.dsa.iot.coap.handlers.coap;
 
 import org.dsa.iot.coap.CoapLinkHandler;
 import org.dsa.iot.coap.Constants;
+import org.dsa.iot.coap.handlers.dsa.RemoteSubscriptionTable;
+import org.dsa.iot.coap.tracing.EventRecorder;
+import org.dsa.iot.coap.tracing.Trace;
+import org.dsa.iot.coap.tracing.Tracer;
 import org.dsa.iot.dslink.util.json.JsonObject;
 import org.eclipse.californium.core.CoapHandler;
 import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.Response;
 
 /**
  * @author James (Juris) Puchin
@@ -12,11 +17,29 @@ import org.eclipse.californium.core.CoapResponse;
  */
 public class AsynchListener implements CoapHandler {
     CoapLinkHandler linkHandler;
+    RemoteSubscriptionTable subscriptions;
+    SequencedStream sequenced;
 
     public AsynchListener(CoapLinkHandler linkHandler) {
         this.linkHandler = linkHandler;
     }
 
+    /**
+     * Listener for the rid 0 stream, updates are fanned out over the subscription table.
+     */
+    public AsynchListener(CoapLinkHandler linkHandler, RemoteSubscriptionTable subscriptions) {
+        this.linkHandler = linkHandler;
+        this.subscriptions = subscriptions;
+    }
+
+    /**
+     * Listener for a list/invoke stream that may be windowed, batches are put back in order first.
+     */
+    public AsynchListener(CoapLinkHandler linkHandler, SequencedStream sequenced) {
+        this.linkHandler = linkHandler;
+        this.sequenced = sequenced;
+    }
+
     private boolean notBlank(JsonObject json) {
         if (json == null) return false;
         String val = json.get(Constants.BLANK_KEY);
@@ -25,17 +48,36 @@ public class AsynchListener implements CoapHandler {
 
     @Override
     public void onLoad(CoapResponse response) {
+        handleResponse(response.advanced());
+    }
+
+    /**
+     * Handle a notification, the Californium response behind onLoad.
+     */
+    public void handleResponse(Response response) {
+        Trace trace = Tracer.fromOptions(response.getOptions());
+        if (trace != null) trace.sinceOrigin(Tracer.CLIENT_END_TO_END);
         try {
-        JsonObject json = Constants.extractPayloadObject(response);
+            if (subscriptions != null) {
+                if (response.getPayload() != null) {
+                    linkHandler.handleRemoteSubscriptionUpdate(response.getPayload(), subscriptions);
+                }
+                return;
+            }
+
+            JsonObject json = Constants.extractPayloadObject(response);
 
-            if (notBlank(json)) {
+            if (sequenced != null && SequencedStream.isSequenced(json)) {
+                sequenced.accept(json);
+            } else if (notBlank(json)) {
                 //if (json.get("rid") != null && json.get("rid").equals(0)) System.out.println("GOT UPDATE:" + json); //DEBUG
                 //System.out.println("GOT MESSAGE:" + json); //DEBUG
-                linkHandler.getResponderLink().getWriter().writeResponse(json);
+                if (sequenced != null) sequenced.pass(json);
+                else linkHandler.writeResponse(json);
             }
         } catch (Exception e) {
-            response.advanced().setRejected(true);
-            System.out.println("Message rejected!");
+            response.setRejected(true);
+            EventRecorder.record(EventRecorder.Type.MESSAGE_REJECTED, 0, response.getPayload() != null ? response.getPayload().length : 0);
         }
 
         //TODO: handle killing listeners on close and stream close
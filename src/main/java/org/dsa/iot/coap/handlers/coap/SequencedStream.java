@@ -0,0 +1,114 @@
+package org.dsa.iot.coap.handlers.coap;
+
+import org.dsa.iot.coap.CoapLinkHandler;
+import org.dsa.iot.coap.Constants;
+import org.dsa.iot.coap.controllers.CoapClientController;
+import org.dsa.iot.dslink.util.json.JsonArray;
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.eclipse.californium.core.coap.Response;
+
+import java.util.TreeMap;
+
+/**
+ * Client side of a windowed stream. Notifications carry a batch of messages and the
+ * sequence number of the first one. Messages are handed on in sequence order, gaps
+ * are filled by asking the gateway to resend the missing range from its retransmit
+ * buffer.
+ */
+public class SequencedStream {
+
+    /**
+     * Receives the messages of the stream in order.
+     */
+    public interface Delivery {
+        void deliver(JsonObject message);
+    }
+
+    private final CoapLinkHandler linkHandler;
+    private final CoapClientController controller;
+    private final String stream;
+    private final int rid;
+    private final Delivery delivery;
+
+    private long expected = 1;
+    private final TreeMap<Long, JsonObject> pending = new TreeMap<>();
+    private boolean resendInFlight = false;
+    private boolean failed = false;
+
+    /**
+     * @param stream Resource of the stream on the gateway, as returned when it was opened
+     * @param rid    Rid of the stream, for the error sent if messages are lost for good
+     */
+    public SequencedStream(CoapLinkHandler linkHandler, CoapClientController controller, String stream, int rid,
+                           Delivery delivery) {
+        this.linkHandler = linkHandler;
+        this.controller = controller;
+        this.stream = stream;
+        this.rid = rid;
+        this.delivery = delivery;
+    }
+
+    public static boolean isSequenced(JsonObject json) {
+        return json != null && json.get(Constants.SEQ_FIELD) != null && json.get(Constants.BATCH_FIELD) != null;
+    }
+
+    public synchronized void accept(JsonObject notification) {
+        if (failed) return;
+        long first = ((Number) notification.get(Constants.SEQ_FIELD)).longValue();
+        JsonArray batch = notification.get(Constants.BATCH_FIELD);
+        for (int i = 0; i < batch.size(); i++) {
+            long seq = first + i;
+            if (seq >= expected) pending.put(seq, batch.get(i));
+        }
+        drain();
+        //Anything past the next expected message, including an empty heartbeat, reveals a gap
+        long gapEnd = pending.isEmpty() ? first + batch.size() : pending.firstKey();
+        if (gapEnd > expected) requestResend(expected, gapEnd - 1);
+    }
+
+    /**
+     * Hand on a message that came outside the window, such as a stream the gateway
+     * does not window.
+     */
+    public synchronized void pass(JsonObject message) {
+        delivery.deliver(message);
+    }
+
+    private void drain() {
+        JsonObject next;
+        while ((next = pending.remove(expected)) != null) {
+            expected++;
+            delivery.deliver(next);
+        }
+    }
+
+    private void requestResend(long from, long to) {
+        if (resendInFlight) return;
+        resendInFlight = true;
+        linkHandler.getControlExecutor().execute(() -> {
+            JsonObject req = new JsonObject();
+            req.put(Constants.GIMME, Constants.RESEND);
+            req.put("stream", stream);
+            req.put("from", from);
+            req.put("to", to);
+            Response resp = controller.postControl(req);
+            JsonObject json = (resp != null) ? Constants.extractPayloadObject(resp) : null;
+            synchronized (this) {
+                resendInFlight = false;
+                if (isSequenced(json)) {
+                    accept(json);
+                } else if (resp != null) {
+                    //The gateway no longer has the messages, the stream can't be lossless anymore
+                    failed = true;
+                    pending.clear();
+                    JsonObject close = Constants.makeCloseReponse(rid);
+                    JsonObject err = new JsonObject();
+                    err.put("msg", "Stream lost messages " + from + " to " + to);
+                    close.put("error", err);
+                    delivery.deliver(close);
+                }
+                //Without any answer the next notification asks again
+            }
+        });
+    }
+}
@@ -4,6 +4,9 @@ import org.dsa.iot.coap.CoapLinkHandler;
 import org.dsa.iot.coap.Constants;
 import org.dsa.iot.coap.controllers.CoapClientController;
 import org.dsa.iot.coap.handlers.coap.AsynchListener;
+import org.dsa.iot.coap.handlers.coap.SequencedStream;
+import org.dsa.iot.coap.tracing.Trace;
+import org.dsa.iot.coap.tracing.Tracer;
 import org.dsa.iot.dslink.connection.DataHandler.DataReceived;
 import org.dsa.iot.dslink.methods.StreamState;
 import org.dsa.iot.dslink.node.Node;
@@ -12,30 +15,64 @@ import org.dsa.iot.dslink.util.json.JsonArray;
 import org.dsa.iot.dslink.util.json.JsonObject;
 import org.eclipse.californium.core.CoapClient;
 import org.eclipse.californium.core.CoapObserveRelation;
-import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author James (Juris) Puchin
  * Created on 12/4/2017
  */
 public class CoapRequestHandler implements Handler<DataReceived> {
+    private static final Logger LOG = LoggerFactory.getLogger(CoapRequestHandler.class);
 
     private Map<Integer, CoapClientController> ridToController = new ConcurrentHashMap<>();
     private Map<Integer, CoapClientController> sidToController = new ConcurrentHashMap<>();
+    private Map<Integer, RemoteListCache> ridToListCache = new ConcurrentHashMap<>();
 
     private CoapLinkHandler coapLinkHandler;
     private Node rootNode;
-    private Map<Integer, CoapObserveRelation> ridToObservation = new ConcurrentHashMap<>();
+    private Map<Integer, CoapClientController.Observation> ridToObservation = new ConcurrentHashMap<>();
 
-    public void add0Observer(CoapObserveRelation obs) {
+    private static final int DISPATCH_THREADS = 32;
+    private static final int DISPATCH_QUEUE = 256;
+    private static ExecutorService dispatchExecutor;
+
+    /*
+     * Bounded pool for the lanes of a batch. When it is saturated the handler thread
+     * runs the lane itself, which also slows down the intake of new batches.
+     */
+    private static synchronized ExecutorService getDispatchExecutor() {
+        if (dispatchExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(DISPATCH_THREADS, DISPATCH_THREADS,
+                    1, TimeUnit.MINUTES, new ArrayBlockingQueue<>(DISPATCH_QUEUE), runnable -> {
+                Thread thread = new Thread(runnable, "coap-dispatch");
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+            executor.allowCoreThreadTimeOut(true);
+            dispatchExecutor = executor;
+        }
+        return dispatchExecutor;
+    }
+
+    public void add0Observer(CoapClientController.Observation obs) {
         ridToObservation.put(0, obs);
     }
 
@@ -51,10 +88,11 @@ public class CoapRequestHandler implements Handler<DataReceived> {
 
     private CoapClientController getControllerFromNodeName(String nodeName) {
         Node node = rootNode.getChild(nodeName, false);
+        //Lazy clients connect on their lane, see subscribeRemote and handleRemoteMethod
         return (node != null) ? (CoapClientController) node.getMetaData() : null;
     }
 
-    public static JsonObject formulateResponse(final CoapResponse rawResponse) {
+    public static JsonObject formulateResponse(final Response rawResponse) {
         //TODO: Hacky exception handling?
         if (rawResponse.getPayload() == null) return null;
         //String respString = new String(rawResponse.getPayload());
@@ -86,127 +124,301 @@ public class CoapRequestHandler implements Handler<DataReceived> {
         }
     }
 
-    private void parseAndRemoveClients(JsonObject json, JsonArray local, Map<CoapClientController, JsonArray> remote) {
-        JsonArray sids = json.get("sids");
-        for (Object sid : sids) {
-            CoapClientController cont = sidToController.remove(sid);
-            if (cont != null) {
-                if (remote.containsKey(cont)) remote.get(cont).add(sid);
-                else remote.put(cont, new JsonArray().add(sid));
-            } else {
-                local.add(sid);
-            }
-        }
-    }
-
     @Override
     public void handle(DataReceived event) {
         final JsonArray data = event.getData();
         List<JsonObject> responses = new LinkedList<>();
+        Batch batch = new Batch();
 
+        //Local requests are answered right away, remote ones queue up per controller
         for (Object object : data) {
             JsonObject json = (JsonObject) object;
-            String path = json.get("path");
-            String method = json.get("method");
+            Trace trace = Tracer.start();
+            Tracer.setCurrent(trace);
+            try {
+                routeRequest(json, responses, batch, trace);
+            } finally {
+                Tracer.setCurrent(null);
+            }
+        }
+        //Local answers don't wait for any remote
+        Integer msgId = event.getMsgId();
+        coapLinkHandler.writeResponses(msgId, responses);
+        batch.run();
+    }
+
+    /*
+     * Sort a request into the local part, answered immediately, and the parts for each
+     * remote. A rid or sid touched earlier in the batch stays on the same lane.
+     */
+    private void routeRequest(JsonObject json, List<JsonObject> responses, Batch batch, Trace trace) {
+        String path = json.get("path");
+        String method = json.get("method");
 
-            //Handle remote close
-            if (method != null && method.equals("close")) {
-                int rid = json.get("rid");
-                CoapClientController cont = ridToController.remove(rid);
+        //Handle remote close
+        if (method != null && method.equals("close")) {
+            int rid = json.get("rid");
+            CoapClientController lane = batch.rids.get(rid);
+            if (lane == null) lane = ridToController.get(rid);
+            if (lane != null) {
+                batch.add(lane, trace, laneResponses -> handleClose(json, laneResponses));
+            } else {
+                handleClose(json, responses);
+            }
+        }
+        //Handle remote unsubscribe
+        else if (method != null && method.equals("unsubscribe")) {
+            JsonArray local = new JsonArray();
+            Map<CoapClientController, JsonArray> remoteMap = new HashMap<>();
+            JsonArray sids = json.get("sids");
+            for (Object sid : sids) {
+                CoapClientController cont = batch.sids.get(sid);
+                if (cont == null) cont = sidToController.get(sid);
                 if (cont != null) {
-                    CoapObserveRelation obs = ridToObservation.remove(rid);
-                    if (obs != null) obs.proactiveCancel();
-                    cont.postToRemote(json);
+                    if (remoteMap.containsKey(cont)) remoteMap.get(cont).add(sid);
+                    else remoteMap.put(cont, new JsonArray().add(sid));
                 } else {
-                    generateAndAddStandardResponses(json, responses);
+                    local.add(sid);
                 }
             }
-            //Handle remote unsubscribe
-            else if (method != null && method.equals("unsubscribe")) {
-                JsonArray local = new JsonArray();
-                Map<CoapClientController, JsonArray> remoteMap = new HashMap<>();
-                parseAndRemoveClients(json, local, remoteMap);
-                int rid = json.get("rid");
-                if (local.size() > 0) {
-                    generateAndAddStandardResponses(Constants.createUnsubReq(local, rid), responses);
-                }
-                if (remoteMap.size() > 0) {
-                    for (Map.Entry<CoapClientController, JsonArray> entry : remoteMap.entrySet()) {
-                        entry.getKey().postToRemote(Constants.createUnsubReq(entry.getValue(), rid));
-                    }
+            int rid = json.get("rid");
+            if (local.size() > 0) {
+                generateAndAddStandardResponses(Constants.createUnsubReq(local, rid), responses);
+            }
+            for (Map.Entry<CoapClientController, JsonArray> entry : remoteMap.entrySet()) {
+                CoapClientController cont = entry.getKey();
+                batch.add(cont, trace, laneResponses -> unsubscribeRemote(cont, entry.getValue()));
+            }
+        }
+        //Handle subscriptions
+        //TODO: when remote client goes down, need to send close requests to local broker (implement elsewhere, probably)
+        else if (method != null && method.equals("subscribe")) {
+            JsonArray local = new JsonArray();
+            //System.out.println("NEW SUB REQUEST:" + json); //DEBUG
+            Map<String, JsonArray> remote = new HashMap<>();
+            JsonArray paths = json.get("paths");
+            int rid = json.get("rid");
+            Constants.sortLocalVsRemote(paths, local, remote);
+            //Send local subscription requests
+            if (local.size() > 0) {
+                JsonObject localReq = Constants.createSubReq(local, rid);
+                generateAndAddStandardResponses(localReq, responses);
+                //System.out.println(localReq); //DEBUG
+            }
+            //Send remote subscription requests
+            for (Map.Entry<String, JsonArray> ent : remote.entrySet()) {
+                CoapClientController cont = getControllerFromNodeName(ent.getKey());
+                if (cont == null) continue; //TODO: Handle better, when no node present
+                for (Object e : ent.getValue()) {
+                    batch.sids.put(Constants.getSid(e), cont);
                 }
+                batch.add(cont, trace, laneResponses -> subscribeRemote(cont, ent.getValue()));
+            }
+        }
+        //Handle remote method invocations
+        else if (path != null && path.contains(Constants.REMOTE_NAME)) {
+            CoapClientController cliContr = getControllerFromPath(path);
+            if (cliContr == null) {
+                System.out.println("PATH IS WRONG!");
+                return;
+            }//Skip in case the path is wrong
+            json.put("path", Constants.extractRemotePath(path));
+            Integer rid = json.get("rid");
+            if (rid != null) batch.rids.put(rid, cliContr);
+            batch.add(cliContr, trace, laneResponses -> handleRemoteMethod(json, cliContr, laneResponses));
+        }
+        //Handle local method invocations
+        else {
+            generateAndAddStandardResponses(json, responses);
+        }
+    }
+
+    private void handleClose(JsonObject json, List<JsonObject> responses) {
+        int rid = json.get("rid");
+        RemoteListCache cache = ridToListCache.remove(rid);
+        if (cache != null && cache.close(rid)) return;
+        CoapClientController cont = ridToController.remove(rid);
+        if (cont != null) {
+            CoapClientController.Observation obs = ridToObservation.remove(rid);
+            if (obs != null) obs.proactiveCancel();
+            //Already released if the remote closed the stream itself
+            Integer remoteRid = cont.releaseRid(rid);
+            if (remoteRid != null) {
+                json.put("rid", remoteRid);
+                cont.postControl(json);
             }
-            //Handle subscriptions
-            //TODO: when remote client goes down, need to send close requests to local broker (implement elsewhere, probably)
-            else if (method != null && method.equals("subscribe")) {
-                JsonArray local = new JsonArray();
-                //System.out.println("NEW SUB REQUEST:" + json); //DEBUG
-                Map<String, JsonArray> remote = new HashMap<>();
-                JsonArray paths = json.get("paths");
-                int rid = json.get("rid");
-                Constants.sortLocalVsRemote(paths, local, remote);
-                //Send local subscription requests
-                if (local.size() > 0) {
-                    JsonObject localReq = Constants.createSubReq(local, rid);
-                    generateAndAddStandardResponses(localReq, responses);
-                    //System.out.println(localReq); //DEBUG
+        } else {
+            generateAndAddStandardResponses(json, responses);
+        }
+    }
+
+    private void unsubscribeRemote(CoapClientController cont, JsonArray sids) {
+        for (Object sid : sids) {
+            sidToController.remove(sid);
+        }
+        //Only unsubscribe remote sids that lost their last local sid
+        JsonArray remoteSids = cont.getSubscriptions().unsubscribe(sids);
+        if (remoteSids.size() > 0) {
+            cont.postControl(Constants.createUnsubReq(remoteSids, cont.genRemoteRid()));
+        }
+    }
+
+    private void subscribeRemote(CoapClientController cont, JsonArray paths) {
+        boolean connected = cont.ensureConnected();
+        for (Object e : paths) {
+            int sid = Constants.getSid(e);
+            sidToController.put(sid, cont);
+        }
+        //Paths already subscribed on the remote just gain another local sid
+        JsonArray orphaned = new JsonArray();
+        JsonArray fresh = cont.getSubscriptions().subscribe(paths, orphaned);
+        //The resync of the next handshake subscribes whatever the gateway doesn't have yet
+        if (!connected) return;
+        if (fresh.size() > 0) {
+            JsonObject remoteReq = Constants.createSubReq(fresh, cont.genRemoteRid());
+            cont.postControl(remoteReq);
+            //System.out.println("SENT SUBS TO REMOTE:" + remoteReq); //DEBUG
+        }
+        //Local sids that moved to another qos may have left their old remote sid unused
+        if (orphaned.size() > 0) {
+            cont.postControl(Constants.createUnsubReq(orphaned, cont.genRemoteRid()));
+        }
+    }
+
+    private void handleRemoteMethod(JsonObject json, CoapClientController cliContr, List<JsonObject> responses) {
+        String method = json.get("method");
+        if (!cliContr.ensureConnected()) {
+            responses.add(unavailable(json.get("rid")));
+            return;
+        }
+        //System.out.println("SENT REQ POST:" + json); //DEBUG
+        //Lists of the same remote path share one cached remote stream
+        if ("list".equals(method)) {
+            int rid = json.get("rid");
+            RemoteListCache cache = cliContr.getListCache();
+            //In the map before subscribing, the cache may close the rid again right away
+            ridToListCache.put(rid, cache);
+            if (!cache.subscribe(json.get("path"), rid, ridToListCache::remove)) {
+                ridToListCache.remove(rid);
+                responses.add(Constants.makeCloseReponse(rid));
+            }
+            return;
+        }
+        //Rapid sets to the same remote path replace each other while one is in flight
+        if ("set".equals(method) && cliContr.isCoalescingSets(json.get("path"))) {
+            cliContr.getSetCoalescer().submit(json);
+            return;
+        }
+        //Forwarded under a rid of the remote's own rid space
+        int rid = json.get("rid");
+        int remoteRid = cliContr.mapRid(rid);
+        json.put("rid", remoteRid);
+        //Post to remote and get response
+        Response response = cliContr.postToRemote(json);
+        if (response == null) {
+            cliContr.releaseRid(rid);
+            responses.add(unavailable(rid));
+            return;
+        }
+        //Do method specific steps
+        switch (method) {
+            case "invoke":
+                //create listener for the rid that will transmit list data
+                JsonObject obj = Constants.extractPayloadObject(response);
+                //System.out.println("Listing: " + obj); //DEBUG
+                String uri = cliContr.getUriPrefix() + obj.get(Constants.REMOTE_RID_FIELD);
+                //TODO: verify listener
+                SequencedStream sequenced = new SequencedStream(coapLinkHandler, cliContr,
+                        obj.get(Constants.REMOTE_RID_FIELD), remoteRid,
+                        message -> deliverStream(cliContr, rid, message));
+                CoapClientController.Observation observation = cliContr.observe(uri, new AsynchListener(coapLinkHandler, sequenced));
+                ridToObservation.put(rid, observation);
+                ridToController.put(rid, cliContr);
+                break;
+            case "remove":
+                //TODO: make sure remove and set work
+            case "set":
+            default:
+                JsonObject resp = formulateResponse(response);
+                if (resp != null) responses.add(cliContr.toLocal(resp));
+                cliContr.releaseRid(rid);
+        }
+    }
+
+    private void deliverStream(CoapClientController cont, int rid, JsonObject message) {
+        cont.toLocal(message);
+        if (StreamState.CLOSED.getJsonName().equals(message.get("stream"))) cont.releaseRid(rid);
+        coapLinkHandler.writeResponse(message);
+    }
+
+    /*
+     * Remote down or out of retries, close the stream instead of leaving it open forever.
+     */
+    private static JsonObject unavailable(int rid) {
+        JsonObject close = Constants.makeCloseReponse(rid);
+        JsonObject err = new JsonObject();
+        err.put("msg", "Remote unavailable");
+        close.put("error", err);
+        return close;
+    }
+
+    /*
+     * Remote work of one DataReceived batch. Requests for the same controller run in
+     * batch order on one lane, lanes of different controllers run concurrently, so a
+     * batch takes as long as its slowest remote rather than the sum of all of them. Each
+     * lane writes its responses as soon as it is done, a slow remote holds back only its
+     * own.
+     */
+    private class Batch {
+        private final Map<Integer, CoapClientController> rids = new HashMap<>();
+        private final Map<Object, CoapClientController> sids = new HashMap<>();
+        private final Map<CoapClientController, List<Runnable>> lanes = new LinkedHashMap<>();
+        private final Map<CoapClientController, List<JsonObject>> laneResponses = new LinkedHashMap<>();
+
+        void add(CoapClientController lane, Trace trace, Handler<List<JsonObject>> task) {
+            List<JsonObject> responses = laneResponses.computeIfAbsent(lane, k -> new LinkedList<>());
+            lanes.computeIfAbsent(lane, k -> new ArrayList<>()).add(() -> {
+                Tracer.setCurrent(trace);
+                try {
+                    task.handle(responses);
+                } catch (RuntimeException e) {
+                    LOG.error("Failed to handle remote request", e);
+                } finally {
+                    Tracer.setCurrent(null);
                 }
-                //Send remote subscription requests
-                if (remote.size() > 0) {
-                    for (Map.Entry<String, JsonArray> ent : remote.entrySet()) {
-                        CoapClientController cont = getControllerFromNodeName(ent.getKey());
-                        if (cont == null) continue; //TODO: Handle better, when no node present
-                        for (Object e : ent.getValue()) {
-                            int sid = Constants.getSid(e);
-                            sidToController.put(sid, cont);
-                        }
-                        JsonObject remoteReq = Constants.createSubReq(ent.getValue(), rid);
-                        cont.postToRemote(remoteReq);
-                        //System.out.println("SENT SUBS TO REMOTE:" + remoteReq); //DEBUG
-                    }
+            });
+        }
+
+        /*
+         * Returns once every lane is done, so the next batch finds the lanes of a
+         * controller in order.
+         */
+        void run() {
+            if (lanes.size() == 1) {
+                //No point in a thread hop for a single remote
+                runLane(lanes.keySet().iterator().next());
+            } else if (lanes.size() > 1) {
+                List<Future<?>> futures = new ArrayList<>();
+                for (CoapClientController lane : lanes.keySet()) {
+                    futures.add(getDispatchExecutor().submit(() -> runLane(lane)));
                 }
-            }
-            //Handle remote method invocations
-            else if (path != null && path.contains(Constants.REMOTE_NAME)) {
-                json.put("path", Constants.extractRemotePath(path));
-                //Post to remote and get response
-                CoapClientController cliContr = getControllerFromPath(path);
-                //System.out.println("SENT REQ POST:" + json); //DEBUG
-                if (cliContr == null) {
-                    System.out.println("PATH IS WRONG!");
-                    continue;
-                }//Skip in case the path is wrong
-                CoapResponse response = cliContr.postToRemote(json);
-                //Do method specific steps
-                switch (method) {
-                    case "invoke":
-                    case "list":
-                        //create listener for the rid that will transmit list data
-                        JsonObject obj = Constants.extractPayloadObject(response);
-                        //System.out.println("Listing: " + obj); //DEBUG
-                        String uri = cliContr.getUriPrefix() + obj.get(Constants.REMOTE_RID_FIELD);
-                        CoapClient client = new CoapClient(uri);
-                        //client.useEarlyNegotiation(64); //TODO: Is this needed
-                        //TODO: verify listener
-                        CoapObserveRelation observation = client.observe(new AsynchListener(coapLinkHandler));
-                        int rid = json.get("rid");
-                        ridToObservation.put(rid, observation);
-                        ridToController.put(rid, cliContr);
-                        break;
-                    case "remove":
-                        //TODO: make sure remove and set work
-                    case "set":
-                    default:
-                        JsonObject resp = formulateResponse(response);
-                        responses.add(resp);
+                for (Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (ExecutionException e) {
+                        LOG.error("Remote lane failed", e.getCause());
+                    }
                 }
             }
-            //Handle local method invocations
-            else {
-                generateAndAddStandardResponses(json, responses);
+        }
+
+        private void runLane(CoapClientController lane) {
+            for (Runnable task : lanes.get(lane)) task.run();
+            for (JsonObject response : laneResponses.get(lane)) {
+                if (response != null) coapLinkHandler.writeResponse(response);
             }
         }
-        Integer msgId = event.getMsgId();
-        coapLinkHandler.getResponderLink().getWriter().writeRequestResponses(msgId, responses);
     }
 }
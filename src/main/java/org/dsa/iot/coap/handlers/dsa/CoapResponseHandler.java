@@ -5,6 +5,7 @@ import java.util.concurrent.ConcurrentHashMap;
 
 import org.dsa.iot.coap.CoapLinkHandler;
 import org.dsa.iot.coap.controllers.CoapServerController;
+import org.dsa.iot.coap.tracing.Tracer;
 import org.dsa.iot.dslink.DSLink;
 import org.dsa.iot.dslink.connection.DataHandler.DataReceived;
 import org.dsa.iot.dslink.util.handler.Handler;
@@ -36,6 +37,7 @@ public class CoapResponseHandler implements Handler<DataReceived>{
             try {
                 json = (JsonObject) object;
                 //System.out.println("HANDELED RESPONSE:" + json); //DEBUG
+                Tracer.setCurrent(Tracer.start());
                 if (!handleLink.handleRemoteDSAMessage(json))
                     handleLink.getRequesterLink().getRequester().parse(json);
             } catch (RuntimeException e) {
@@ -44,8 +46,11 @@ public class CoapResponseHandler implements Handler<DataReceived>{
                 } else {
                     LOG.error("Failed to parse json is Null", e);
                 }
+            } finally {
+                Tracer.setCurrent(null);
             }
         }
-        handleLink.getRequesterLink().getWriter().writeAck(event.getMsgId());
+        //Held back while the CoAP side is behind, see FlowController
+        handleLink.getFlowController().ack(event.getMsgId());
     }
 }
\ No newline at end of file
@@ -0,0 +1,216 @@
+package org.dsa.iot.coap.handlers.dsa;
+
+import org.dsa.iot.coap.CoapLinkHandler;
+import org.dsa.iot.dslink.DSLink;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Backpressure from the CoAP side to the local broker. Stream resources count the
+ * messages waiting in their queues per peer, once the total reaches the high water
+ * mark acks for frames from the broker are held back, so its send window closes. The
+ * latest held ack is released when the queues drained to the low water mark, or after
+ * MAX_STALL so a queue nobody drains can't block the link for good.
+ *
+ * A peer whose own backlog reaches the peer high water mark is paused: its backlog
+ * stops counting towards the total until it drained to the peer low water mark, so
+ * one dead peer can't throttle the healthy ones. Its sessions spill rid 0 to the
+ * store and forward log while it is paused, see PeerSession.
+ */
+public class FlowController {
+
+    public static final long DEFAULT_HIGH_WATER = 10000;
+    public static final long DEFAULT_LOW_WATER = 5000;
+    public static final long DEFAULT_PEER_HIGH_WATER = 2000;
+    public static final long DEFAULT_PEER_LOW_WATER = 1000;
+    private static final long MAX_STALL = 30000;
+
+    private final CoapLinkHandler linkHandler;
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong stalls = new AtomicLong();
+    private final AtomicInteger pausedPeers = new AtomicInteger();
+
+    private volatile long highWater = DEFAULT_HIGH_WATER;
+    private volatile long lowWater = DEFAULT_LOW_WATER;
+    private volatile long peerHighWater = DEFAULT_PEER_HIGH_WATER;
+    private volatile long peerLowWater = DEFAULT_PEER_LOW_WATER;
+    private volatile boolean stalled = false;
+    private long stalledSince;
+    private Integer heldAck;
+
+    public FlowController(CoapLinkHandler linkHandler) {
+        this.linkHandler = linkHandler;
+    }
+
+    /**
+     * @param high Queued messages at which acks are held, 0 disables flow control
+     * @param low  Queued messages at which held acks are released
+     */
+    public void setWatermarks(long high, long low) {
+        highWater = high;
+        lowWater = Math.min(low, high);
+        if (high <= 0 || queued.get() <= lowWater) release();
+    }
+
+    /**
+     * @param high Backlog at which a peer is paused, 0 never pauses peers
+     * @param low  Backlog at which a paused peer counts again
+     */
+    public void setPeerWatermarks(long high, long low) {
+        peerHighWater = high;
+        peerLowWater = Math.min(low, high);
+    }
+
+    /**
+     * Backlog of a new peer session, closed together with the session.
+     *
+     * @param key Peer as in PeerSession.keyOf
+     */
+    public Peer createPeer(String key) {
+        return new Peer(key);
+    }
+
+    private void count(long count) {
+        if (count <= 0) return;
+        long now = queued.addAndGet(count);
+        if (!stalled && highWater > 0 && now >= highWater) {
+            synchronized (this) {
+                if (!stalled) {
+                    stalled = true;
+                    stalledSince = System.currentTimeMillis();
+                    stalls.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private void uncount(long count) {
+        if (count <= 0) return;
+        long now = queued.addAndGet(-count);
+        if (stalled && now <= lowWater) release();
+    }
+
+    /**
+     * Ack a frame from the local broker, or hold the ack while stalled.
+     */
+    public void ack(Integer msgId) {
+        synchronized (this) {
+            if (stalled) {
+                if (msgId != null) heldAck = msgId;
+                return;
+            }
+        }
+        writeAck(msgId);
+    }
+
+    /**
+     * Periodic check releasing a stall that outlived MAX_STALL.
+     */
+    public void checkStall() {
+        boolean expired;
+        synchronized (this) {
+            expired = stalled && System.currentTimeMillis() - stalledSince > MAX_STALL;
+        }
+        if (expired) release();
+    }
+
+    private void release() {
+        Integer ack;
+        synchronized (this) {
+            stalled = false;
+            ack = heldAck;
+            heldAck = null;
+        }
+        if (ack != null) writeAck(ack);
+    }
+
+    private void writeAck(Integer msgId) {
+        DSLink link = linkHandler.getRequesterLink();
+        if (link != null) link.getWriter().writeAck(msgId);
+    }
+
+    public long getQueued() {
+        return queued.get();
+    }
+
+    public boolean isStalled() {
+        return stalled;
+    }
+
+    public long getStalls() {
+        return stalls.get();
+    }
+
+    public int getPausedPeers() {
+        return pausedPeers.get();
+    }
+
+    /**
+     * Backlog of one peer.
+     */
+    public class Peer {
+        private final String key;
+        private long backlog = 0;
+        private boolean paused = false;
+        private boolean closed = false;
+
+        private Peer(String key) {
+            this.key = key;
+        }
+
+        /**
+         * A message was queued for CoAP delivery to the peer.
+         */
+        public synchronized void enqueued() {
+            if (closed) return;
+            backlog++;
+            if (paused) return;
+            if (peerHighWater > 0 && backlog >= peerHighWater) {
+                paused = true;
+                pausedPeers.incrementAndGet();
+                uncount(backlog - 1);
+                return;
+            }
+            count(1);
+        }
+
+        /**
+         * Messages left a queue of the peer, either sent or dropped with their stream.
+         */
+        public synchronized void delivered(int count) {
+            if (closed || count <= 0) return;
+            backlog -= count;
+            if (!paused) {
+                uncount(count);
+            } else if (backlog <= peerLowWater || peerHighWater <= 0) {
+                paused = false;
+                pausedPeers.decrementAndGet();
+                count(backlog);
+            }
+        }
+
+        /**
+         * The session of the peer is gone, its backlog no longer counts.
+         */
+        public synchronized void close() {
+            if (closed) return;
+            closed = true;
+            if (paused) {
+                paused = false;
+                pausedPeers.decrementAndGet();
+            } else {
+                uncount(backlog);
+            }
+            backlog = 0;
+        }
+
+        public synchronized boolean isPaused() {
+            return paused;
+        }
+
+        public String getKey() {
+            return key;
+        }
+    }
+}
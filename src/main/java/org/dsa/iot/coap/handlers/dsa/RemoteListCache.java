@@ -0,0 +1,283 @@
+package org.dsa.iot.coap.handlers.dsa;
+
+import org.dsa.iot.coap.CoapLinkHandler;
+import org.dsa.iot.coap.Constants;
+import org.dsa.iot.coap.controllers.CoapClientController;
+import org.dsa.iot.coap.handlers.coap.SequencedStream;
+import org.dsa.iot.dslink.methods.StreamState;
+import org.dsa.iot.dslink.util.Objects;
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.dslink.util.json.JsonArray;
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapObserveRelation;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client side cache of remote list streams. All local list requests for the same
+ * remote path share a single remote rid and observe relation, updates are fanned
+ * out to every local rid. The remote stream is closed once the last local rid is
+ * gone and the linger time of the owning client node has passed.
+ */
+public class RemoteListCache {
+    private static final Logger LOG = LoggerFactory.getLogger(RemoteListCache.class);
+
+    private final CoapClientController controller;
+    private final CoapLinkHandler linkHandler;
+
+    private final Map<String, SharedListStream> pathToStream = new ConcurrentHashMap<>();
+    private final Map<Integer, SharedListStream> ridToStream = new ConcurrentHashMap<>();
+    private final Map<Integer, Handler<Integer>> ridToClosed = new ConcurrentHashMap<>();
+
+    public RemoteListCache(CoapClientController controller, CoapLinkHandler linkHandler) {
+        this.controller = controller;
+        this.linkHandler = linkHandler;
+    }
+
+    /**
+     * Attach a local list request to the shared stream of the remote path, opening
+     * the remote stream if this is the first request for the path.
+     *
+     * @param remotePath Path on the remote broker
+     * @param localRid   Rid of the local list request
+     * @param onClosed   Called with the local rid if the cache closes it on its own
+     * @return false if the remote stream could not be opened
+     */
+    public boolean subscribe(String remotePath, int localRid, Handler<Integer> onClosed) {
+        while (true) {
+            SharedListStream stream;
+            boolean opening = false;
+            //Only the placeholder goes in under the lock, lists of other paths don't wait for this remote
+            synchronized (pathToStream) {
+                stream = pathToStream.get(remotePath);
+                if (stream == null) {
+                    stream = new SharedListStream(remotePath, controller.genRemoteRid());
+                    pathToStream.put(remotePath, stream);
+                    opening = true;
+                }
+            }
+            if (opening && !stream.open()) {
+                stream.fail("Failed to open remote list stream");
+                return false;
+            }
+            ridToStream.put(localRid, stream);
+            ridToClosed.put(localRid, onClosed);
+            //Stream may have been retired in the meantime, retry with a fresh one
+            if (stream.addRid(localRid)) return true;
+            ridToStream.remove(localRid, stream);
+            ridToClosed.remove(localRid);
+        }
+    }
+
+    /**
+     * Detach a local rid from its shared stream.
+     *
+     * @param localRid Rid of the local list request
+     * @return true if the rid belonged to a cached list stream
+     */
+    public boolean close(int localRid) {
+        ridToClosed.remove(localRid);
+        SharedListStream stream = ridToStream.remove(localRid);
+        if (stream == null) return false;
+        stream.removeRid(localRid);
+        return true;
+    }
+
+    public int getStreamCount() {
+        return pathToStream.size();
+    }
+
+    private void retire(SharedListStream stream) {
+        pathToStream.remove(stream.remotePath, stream);
+        for (Integer rid : stream.localRids) {
+            if (!ridToStream.remove(rid, stream)) continue;
+            Handler<Integer> onClosed = ridToClosed.remove(rid);
+            if (onClosed != null) onClosed.handle(rid);
+        }
+    }
+
+    private static JsonObject makeListResponse(int rid, String stream, JsonArray updates, Object error) {
+        JsonObject resp = new JsonObject();
+        resp.put("rid", rid);
+        if (stream != null) resp.put("stream", stream);
+        if (updates != null) resp.put("updates", updates);
+        if (error != null) resp.put("error", error);
+        return resp;
+    }
+
+    /*
+     * One remote list stream, shared by all local rids listing the same path.
+     */
+    private class SharedListStream implements CoapHandler {
+        private final String remotePath;
+        private final int remoteRid;
+        private final Set<Integer> localRids = new CopyOnWriteArraySet<>();
+        private final Map<String, Object> state = new LinkedHashMap<>();
+
+        private CoapClientController.Observation observation;
+        private SequencedStream sequenced;
+        private ScheduledFuture lingerFuture;
+        private boolean initialized = false;
+        private boolean closed = false;
+
+        SharedListStream(String remotePath, int remoteRid) {
+            this.remotePath = remotePath;
+            this.remoteRid = remoteRid;
+        }
+
+        boolean open() {
+            JsonObject req = new JsonObject();
+            req.put("method", "list");
+            req.put("path", remotePath);
+            req.put("rid", remoteRid);
+            Response response = controller.postToRemote(req);
+            JsonObject obj = (response != null) ? Constants.extractPayloadObject(response) : null;
+            if (obj == null || obj.get(Constants.REMOTE_RID_FIELD) == null) {
+                LOG.warn("Failed to open remote list stream for {}", remotePath);
+                return false;
+            }
+            String uri = controller.getUriPrefix() + obj.get(Constants.REMOTE_RID_FIELD);
+            synchronized (this) {
+                sequenced = new SequencedStream(linkHandler, controller, obj.get(Constants.REMOTE_RID_FIELD), remoteRid,
+                        this::handleMessage);
+                observation = controller.observe(uri, this);
+            }
+            return true;
+        }
+
+        synchronized boolean addRid(int localRid) {
+            if (closed) return false;
+            if (lingerFuture != null) {
+                lingerFuture.cancel(false);
+                lingerFuture = null;
+            }
+            localRids.add(localRid);
+            if (initialized) {
+                JsonArray updates = new JsonArray();
+                for (Object update : state.values()) updates.add(update);
+                writeResponse(makeListResponse(localRid, StreamState.OPEN.getJsonName(), updates, null));
+            }
+            return true;
+        }
+
+        synchronized void removeRid(int localRid) {
+            localRids.remove(localRid);
+            if (!localRids.isEmpty() || closed) return;
+            long linger = controller.getListLinger();
+            lingerFuture = Objects.getDaemonThreadPool().schedule(this::lingerExpired, linger, TimeUnit.MILLISECONDS);
+        }
+
+        private void lingerExpired() {
+            synchronized (this) {
+                if (!localRids.isEmpty() || closed) return;
+                closed = true;
+                retire(this);
+                if (observation != null) observation.proactiveCancel();
+            }
+            closeRemote();
+        }
+
+        /*
+         * Close the local rids with an error and give up on the remote stream, for a
+         * stream that failed to open or whose observe relation failed.
+         */
+        void fail(String msg) {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+                JsonObject err = null;
+                if (msg != null) {
+                    err = new JsonObject();
+                    err.put("msg", msg);
+                }
+                for (Integer rid : localRids) {
+                    writeResponse(makeListResponse(rid, StreamState.CLOSED.getJsonName(), null, err));
+                }
+                retire(this);
+                if (observation != null) observation.proactiveCancel();
+            }
+            if (observation != null) closeRemote();
+        }
+
+        private void closeRemote() {
+            JsonObject req = new JsonObject();
+            req.put("method", "close");
+            req.put("rid", remoteRid);
+            //Never blocks the caller, which may be a Californium thread
+            linkHandler.getControlExecutor().execute(() -> controller.postControl(req));
+        }
+
+        private void applyUpdates(JsonArray updates) {
+            for (Object update : updates) {
+                if (update instanceof JsonArray) {
+                    JsonArray row = (JsonArray) update;
+                    if (row.size() > 0) state.put(String.valueOf(row.get(0)), row);
+                } else if (update instanceof JsonObject) {
+                    JsonObject row = (JsonObject) update;
+                    String name = row.get("name");
+                    if (name == null) continue;
+                    if ("remove".equals(row.get("change"))) state.remove(name);
+                    else state.put(name, row);
+                }
+            }
+        }
+
+        @Override
+        public void onLoad(CoapResponse response) {
+            JsonObject json;
+            try {
+                json = Constants.extractPayloadObject(response);
+            } catch (Exception e) {
+                response.advanced().setRejected(true);
+                return;
+            }
+            //Not synchronized here, resends deliver through the sequenced stream's lock first
+            if (SequencedStream.isSequenced(json)) {
+                sequenced.accept(json);
+            } else {
+                handleMessage(json);
+            }
+        }
+
+        private synchronized void handleMessage(JsonObject json) {
+            if (json == null || Constants.BLANK_VAL.equals(json.get(Constants.BLANK_KEY))) return;
+
+            JsonArray updates = json.get("updates");
+            if (updates != null) applyUpdates(updates);
+            initialized = true;
+
+            String stream = json.get("stream");
+            for (Integer rid : localRids) {
+                writeResponse(makeListResponse(rid, stream, updates, json.get("error")));
+            }
+
+            if (StreamState.CLOSED.getJsonName().equals(stream)) {
+                closed = true;
+                retire(this);
+                if (observation != null) observation.proactiveCancel();
+            }
+        }
+
+        @Override
+        public void onError() {
+            LOG.warn("Remote list stream for {} failed", remotePath);
+            fail("Remote list stream failed");
+        }
+
+        private void writeResponse(JsonObject json) {
+            linkHandler.writeResponse(json);
+        }
+    }
+}
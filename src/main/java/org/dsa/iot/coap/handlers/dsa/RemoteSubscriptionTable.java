@@ -0,0 +1,169 @@
+package org.dsa.iot.coap.handlers.dsa;
+
+import org.dsa.iot.coap.CoapLinkHandler;
+import org.dsa.iot.coap.Constants;
+import org.dsa.iot.dslink.util.json.JsonArray;
+import org.dsa.iot.dslink.util.json.JsonObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Reference counted subscriptions of one client node. Local sids subscribing the
+ * same remote path and qos share a single remote sid, the remote side only sees
+ * one subscription per path no matter how many local requesters there are.
+ */
+public class RemoteSubscriptionTable {
+
+    private final CoapLinkHandler linkHandler;
+
+    private final Map<String, RemoteSub> keyToSub = new HashMap<>();
+    private final Map<Integer, RemoteSub> remoteSidToSub = new ConcurrentHashMap<>();
+    private final Map<Integer, RemoteSub> localSidToSub = new ConcurrentHashMap<>();
+
+    public RemoteSubscriptionTable(CoapLinkHandler linkHandler) {
+        this.linkHandler = linkHandler;
+    }
+
+    private static String makeKey(String path, int qos) {
+        return qos + ":" + path;
+    }
+
+    /**
+     * Register local subscriptions.
+     *
+     * @param paths    Subscribe path entries with local sids and remote paths
+     * @param orphaned Receives remote sids that lost their last local sid to a changed
+     *                 qos and have to be unsubscribed on the remote
+     * @return Path entries, with remote sids, that have to be subscribed on the remote
+     */
+    public synchronized JsonArray subscribe(JsonArray paths, JsonArray orphaned) {
+        JsonArray fresh = new JsonArray();
+        JsonArray cached = new JsonArray();
+        for (Object obj : paths) {
+            JsonObject entry = (JsonObject) obj;
+            int localSid = Constants.getSid(entry);
+            String path = entry.get("path");
+            Integer qos = entry.get("qos");
+            String key = makeKey(path, qos != null ? qos : 0);
+
+            RemoteSub sub = localSidToSub.get(localSid);
+            if (sub != null) {
+                if (sub.key.equals(key)) continue;
+                Integer orphan = removeLocalSid(localSid);
+                if (orphan != null) orphaned.add(orphan);
+            }
+
+            sub = keyToSub.get(key);
+            if (sub == null) {
+                sub = new RemoteSub(key, path, qos, linkHandler.genLocalId());
+                keyToSub.put(key, sub);
+                remoteSidToSub.put(sub.remoteSid, sub);
+                entry.put("sid", sub.remoteSid);
+                fresh.add(entry);
+            } else if (sub.lastUpdate != null) {
+                cached.add(Constants.copyUpdateWithSid(sub.lastUpdate, localSid));
+            }
+            sub.localSids.add(localSid);
+            localSidToSub.put(localSid, sub);
+        }
+        if (cached.size() > 0) {
+            linkHandler.writeResponse(Constants.createSidUpd(cached));
+        }
+        return fresh;
+    }
+
+    /**
+     * Drop local subscriptions.
+     *
+     * @param localSids Local sids being unsubscribed
+     * @return Remote sids that lost their last local sid and have to be unsubscribed on the remote
+     */
+    public synchronized JsonArray unsubscribe(JsonArray localSids) {
+        JsonArray remoteSids = new JsonArray();
+        for (Object sid : localSids) {
+            Integer remoteSid = removeLocalSid((Integer) sid);
+            if (remoteSid != null) remoteSids.add(remoteSid);
+        }
+        return remoteSids;
+    }
+
+    private Integer removeLocalSid(int localSid) {
+        RemoteSub sub = localSidToSub.remove(localSid);
+        if (sub == null) return null;
+        sub.localSids.remove(localSid);
+        if (!sub.localSids.isEmpty()) return null;
+        keyToSub.remove(sub.key);
+        remoteSidToSub.remove(sub.remoteSid);
+        return sub.remoteSid;
+    }
+
+    /**
+     * Translate one remote subscription update into an update per local sid.
+     *
+     * @param update Update keyed by remote sid
+     * @param out    Receives the local updates
+     */
+    public void fanOut(Object update, JsonArray out) {
+        RemoteSub sub = remoteSidToSub.get(Constants.getSid(update));
+        if (sub == null) return;
+        sub.lastUpdate = update;
+        for (Integer localSid : sub.localSids) {
+            out.add(Constants.copyUpdateWithSid(update, localSid));
+        }
+    }
+
+    /**
+     * @return Remote sids currently subscribed on the remote
+     */
+    public JsonArray getRemoteSids() {
+        JsonArray sids = new JsonArray();
+        for (Integer sid : remoteSidToSub.keySet()) {
+            sids.add(sid);
+        }
+        return sids;
+    }
+
+    /**
+     * Rebuild the subscribe path entries of remote sids, for resubscribing them on the remote.
+     *
+     * @param remoteSids Remote sids to resubscribe
+     * @return Path entries with remote sids
+     */
+    public JsonArray getPathEntries(JsonArray remoteSids) {
+        JsonArray paths = new JsonArray();
+        for (Object sid : remoteSids) {
+            RemoteSub sub = remoteSidToSub.get(((Number) sid).intValue());
+            if (sub == null) continue;
+            JsonObject entry = new JsonObject();
+            entry.put("path", sub.path);
+            entry.put("sid", sub.remoteSid);
+            if (sub.qos != null) entry.put("qos", sub.qos);
+            paths.add(entry);
+        }
+        return paths;
+    }
+
+    public int getRemoteCount() {
+        return remoteSidToSub.size();
+    }
+
+    private static class RemoteSub {
+        private final String key;
+        private final String path;
+        private final Integer qos;
+        private final int remoteSid;
+        private final Set<Integer> localSids = new CopyOnWriteArraySet<>();
+        private volatile Object lastUpdate;
+
+        RemoteSub(String key, String path, Integer qos, int remoteSid) {
+            this.key = key;
+            this.path = path;
+            this.qos = qos;
+            this.remoteSid = remoteSid;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package org.dsa.iot.coap.handlers.dsa;
+
+import org.dsa.iot.coap.CoapLinkHandler;
+import org.dsa.iot.dslink.DSLink;
+import org.dsa.iot.dslink.util.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects responses for the local broker into multi-response frames, Nagle style.
+ * A response arriving after a quiet spell is written right away, during bursts
+ * responses wait until the batch is full or its oldest one is max delay old.
+ * Responses are written in the order they were added. Every response for the local
+ * broker goes through here, so a direct answer for a rid can't overtake stream data
+ * of that rid still waiting in a batch.
+ */
+public class ResponseBatcher {
+
+    public static final long DEFAULT_MAX_BATCH = 100;
+    public static final long DEFAULT_MAX_DELAY = 5;
+
+    private final CoapLinkHandler linkHandler;
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong responses = new AtomicLong();
+
+    private volatile int maxBatch = (int) DEFAULT_MAX_BATCH;
+    private volatile long maxDelay = DEFAULT_MAX_DELAY;
+
+    private List<JsonObject> pending = new ArrayList<>();
+    private Integer pendingAck;
+    private long lastArrival = 0;
+    private ScheduledFuture flushFuture;
+    private volatile double averageBatch = 0;
+
+    public ResponseBatcher(CoapLinkHandler linkHandler) {
+        this.linkHandler = linkHandler;
+    }
+
+    /**
+     * @param maxBatch Responses per frame, 1 or less writes every response on its own
+     * @param maxDelay Milliseconds a response may wait for others
+     */
+    public void setWindow(long maxBatch, long maxDelay) {
+        this.maxBatch = (int) Math.max(1, maxBatch);
+        this.maxDelay = Math.max(0, maxDelay);
+        flush();
+    }
+
+    public synchronized void add(JsonObject json) {
+        long now = System.nanoTime();
+        boolean quiet = now - lastArrival > TimeUnit.MILLISECONDS.toNanos(maxDelay);
+        lastArrival = now;
+        pending.add(json);
+        if (pending.size() >= maxBatch || (quiet && pending.size() == 1) || maxDelay == 0) {
+            flush();
+        } else if (flushFuture == null) {
+            flushFuture = linkHandler.getExecutor().schedule(this::flush, maxDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Write direct answers to a request message right away, behind whatever is pending.
+     *
+     * @param ackId Message to acknowledge, null for none
+     */
+    public synchronized void addAll(Integer ackId, Collection<JsonObject> jsons) {
+        //An ack of a newer message covers the older ones
+        if (ackId != null) pendingAck = ackId;
+        for (JsonObject json : jsons) {
+            if (json != null) pending.add(json);
+        }
+        lastArrival = System.nanoTime();
+        flush();
+    }
+
+    /*
+     * Writing under the lock keeps frames in order.
+     */
+    public synchronized void flush() {
+        if (flushFuture != null) {
+            flushFuture.cancel(false);
+            flushFuture = null;
+        }
+        Integer ackId = pendingAck;
+        if (pending.isEmpty() && ackId == null) return;
+        List<JsonObject> batch = pending;
+        pending = new ArrayList<>();
+        pendingAck = null;
+        DSLink link = linkHandler.getResponderLink();
+        if (link == null) return;
+        if (batch.isEmpty()) {
+            link.getWriter().writeAck(ackId);
+            return;
+        } else if (batch.size() == 1 && ackId == null) {
+            link.getWriter().writeResponse(batch.get(0));
+        } else {
+            //A null ack is what writeResponse of the SDK passes itself
+            link.getWriter().writeRequestResponses(ackId, batch);
+        }
+        frames.incrementAndGet();
+        responses.addAndGet(batch.size());
+        averageBatch = averageBatch * 0.9 + batch.size() * 0.1;
+    }
+
+    public long getFrames() {
+        return frames.get();
+    }
+
+    public long getResponses() {
+        return responses.get();
+    }
+
+    public double getAverageBatch() {
+        return averageBatch;
+    }
+}
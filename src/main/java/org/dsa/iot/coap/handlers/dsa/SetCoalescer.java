@@ -0,0 +1,103 @@
+package org.dsa.iot.coap.handlers.dsa;
+
+import org.dsa.iot.coap.CoapLinkHandler;
+import org.dsa.iot.coap.controllers.CoapClientController;
+import org.dsa.iot.dslink.methods.StreamState;
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.eclipse.californium.core.coap.Response;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coalesces set requests of one client node. While a set to a remote path is in
+ * flight, later sets to the same path only replace the pending value. Once the
+ * in-flight set completes the pending one is sent, and every local rid folded
+ * into it is answered with its result.
+ */
+public class SetCoalescer {
+
+    private final CoapClientController controller;
+    private final CoapLinkHandler linkHandler;
+    private final Map<String, PendingSet> pathToPending = new HashMap<>();
+
+    public SetCoalescer(CoapClientController controller, CoapLinkHandler linkHandler) {
+        this.controller = controller;
+        this.linkHandler = linkHandler;
+    }
+
+    /**
+     * Queue a set request, the local rid is answered asynchronously.
+     *
+     * @param json Set request with the path already converted to the remote path and the
+     *             rid of the local broker
+     */
+    public void submit(JsonObject json) {
+        String path = json.get("path");
+        int rid = json.get("rid");
+        synchronized (pathToPending) {
+            PendingSet pending = pathToPending.get(path);
+            if (pending != null) {
+                pending.next = json;
+                pending.nextRids.add(rid);
+                return;
+            }
+            pathToPending.put(path, new PendingSet());
+        }
+        List<Integer> rids = new ArrayList<>();
+        rids.add(rid);
+        linkHandler.getExecutor().execute(() -> drain(path, json, rids));
+    }
+
+    private void drain(String path, JsonObject json, List<Integer> rids) {
+        while (true) {
+            //Only the set that is sent needs a remote rid, the ones folded into it are answered locally
+            int sentRid = json.get("rid");
+            json.put("rid", controller.mapRid(sentRid));
+            Response response;
+            try {
+                response = controller.postToRemote(json);
+            } catch (RuntimeException e) {
+                response = null;
+            } finally {
+                controller.releaseRid(sentRid);
+            }
+            answer(rids, response);
+            synchronized (pathToPending) {
+                PendingSet pending = pathToPending.get(path);
+                if (pending.next == null) {
+                    pathToPending.remove(path);
+                    return;
+                }
+                json = pending.next;
+                rids = pending.nextRids;
+                pending.next = null;
+                pending.nextRids = new ArrayList<>();
+            }
+        }
+    }
+
+    private void answer(List<Integer> rids, Response response) {
+        JsonObject remote = (response != null) ? CoapRequestHandler.formulateResponse(response) : null;
+        Object error = (remote != null) ? remote.get("error") : null;
+        if (remote == null) {
+            JsonObject err = new JsonObject();
+            err.put("msg", "No response from remote");
+            error = err;
+        }
+        for (Integer rid : rids) {
+            JsonObject resp = new JsonObject();
+            resp.put("rid", rid);
+            resp.put("stream", StreamState.CLOSED.getJsonName());
+            if (error != null) resp.put("error", error);
+            linkHandler.writeResponse(resp);
+        }
+    }
+
+    private static class PendingSet {
+        private JsonObject next;
+        private List<Integer> nextRids = new ArrayList<>();
+    }
+}
@@ -0,0 +1,201 @@
+package org.dsa.iot.coap.loadgen;
+
+import org.dsa.iot.coap.Constants;
+import org.dsa.iot.coap.resources.DSACoapServer;
+import org.dsa.iot.coap.tracing.LatencyHistogram;
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.eclipse.californium.core.network.CoapEndpoint;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Synthetic DSA-over-CoAP load against a gateway server backed by a stub broker, all
+ * on localhost. Simulated peers speak the gateway protocol directly: rid 0 handshake,
+ * subscribe, then a mix of list, invoke and set requests.
+ *
+ * Options (defaults in brackets):
+ * --peers [100] --subs [10] --paths [1000] --update-rate [1000] --request-rate [1]
+ * --mix [list:1,invoke:1,set:8] --duration [60] --report [5] --port [5699]
+ * --rid0-mode [lossless] --stream-table [false] --windowed [false] --threads [8]
+ */
+public class LoadGenerator {
+
+    private static final long TICK = 10;
+
+    private final Map<String, String> options;
+    private final LoadStats stats = new LoadStats();
+    private final List<SimulatedPeer> peers = new ArrayList<>();
+    private final String[] mixMethods;
+    private final int[] mixWeights;
+    private int mixTotal = 0;
+    private double carry = 0;
+    private int nextPeer = 0;
+
+    private LoadGenerator(Map<String, String> options) {
+        this.options = options;
+        String[] parts = get("mix", "list:1,invoke:1,set:8").split(",");
+        mixMethods = new String[parts.length];
+        mixWeights = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            String[] pair = parts[i].split(":");
+            mixMethods[i] = pair[0].trim();
+            mixWeights[i] = (pair.length > 1) ? Integer.parseInt(pair[1].trim()) : 1;
+            mixTotal += mixWeights[i];
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) throw new IllegalArgumentException("Unexpected argument " + args[i]);
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        new LoadGenerator(options).run();
+    }
+
+    private String get(String name, String def) {
+        String val = options.get(name);
+        return (val != null) ? val : def;
+    }
+
+    private int getInt(String name, int def) {
+        return Integer.parseInt(get(name, Integer.toString(def)));
+    }
+
+    private void run() throws Exception {
+        int port = getInt("port", 5699);
+        int peerCount = getInt("peers", 100);
+        int subs = getInt("subs", 10);
+        int pathSpace = getInt("paths", 1000);
+        double updateRate = Double.parseDouble(get("update-rate", "1000"));
+        double requestRate = Double.parseDouble(get("request-rate", "1"));
+        long duration = getInt("duration", 60);
+        long report = getInt("report", 5);
+
+        StubBroker broker = new StubBroker();
+        Node homeNode = new Node("loadgen", null, null);
+        homeNode.setConfig(Constants.RID0_MODE, new Value(get("rid0-mode", Constants.RID0_LOSSLESS)));
+        homeNode.setConfig(Constants.RATE_LIMIT, new Value(getInt("rate-limit", 0)));
+        homeNode.setConfig(Constants.MAX_STREAMS, new Value(getInt("max-streams", 0)));
+        homeNode.setConfig(Constants.STREAM_TABLE, new Value(Boolean.parseBoolean(get("stream-table", "false"))));
+        homeNode.setConfig(Constants.WINDOWED_STREAMS, new Value(Boolean.parseBoolean(get("windowed", "false"))));
+        DSACoapServer server = new DSACoapServer(homeNode, broker);
+        server.addEndpoint(new CoapEndpoint(new InetSocketAddress("127.0.0.1", port)));
+        server.start();
+        broker.startUpdates(updateRate);
+
+        ScheduledThreadPoolExecutor peerExecutor = new ScheduledThreadPoolExecutor(getInt("threads", 8), runnable -> {
+            Thread thread = new Thread(runnable, "loadgen-peer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        String uriPrefix = "coap://127.0.0.1:" + port + "/";
+        System.out.println("Connecting " + peerCount + " peers to " + uriPrefix);
+        ExecutorService connector = Executors.newFixedThreadPool(16);
+        List<Future<SimulatedPeer>> pending = new ArrayList<>();
+        for (int i = 0; i < peerCount; i++) {
+            final int index = i;
+            pending.add(connector.submit(() -> {
+                SimulatedPeer peer = new SimulatedPeer(uriPrefix, peerExecutor, stats);
+                if (!peer.handshake()) {
+                    peer.close();
+                    return null;
+                }
+                peer.subscribe(subs, pathSpace, index);
+                return peer;
+            }));
+        }
+        for (Future<SimulatedPeer> future : pending) {
+            SimulatedPeer peer = future.get();
+            if (peer != null) peers.add(peer);
+        }
+        connector.shutdown();
+        System.out.println(peers.size() + " peers connected");
+
+        ScheduledExecutorService driver = Executors.newSingleThreadScheduledExecutor();
+        double perTick = requestRate * peers.size() * TICK / 1000;
+        driver.scheduleAtFixedRate(() -> fire(perTick), TICK, TICK, TimeUnit.MILLISECONDS);
+
+        long start = System.currentTimeMillis();
+        long lastRequests = 0, lastUpdates = 0, lastBrokerUpdates = 0;
+        while (System.currentTimeMillis() - start < duration * 1000) {
+            Thread.sleep(report * 1000);
+            long requests = stats.requests.get();
+            long updates = stats.updates.get();
+            long brokerUpdates = broker.getUpdatesSent();
+            System.out.printf("req/s %.0f | upd produced/s %.0f | upd delivered/s %.0f | req %s | stream %s"
+                            + " | update %s | failures %d | heap %d MB%n",
+                    (requests - lastRequests) / (double) report,
+                    (brokerUpdates - lastBrokerUpdates) / (double) report,
+                    (updates - lastUpdates) / (double) report,
+                    summary(stats.requestLatency), summary(stats.streamLatency), summary(stats.updateLatency),
+                    stats.failures.get(), usedHeapMb());
+            lastRequests = requests;
+            lastUpdates = updates;
+            lastBrokerUpdates = brokerUpdates;
+        }
+
+        driver.shutdownNow();
+        for (SimulatedPeer peer : peers) {
+            peer.close();
+        }
+        System.gc();
+        System.out.printf("Done: %d requests, %d updates delivered, %d notifications, %d failures,"
+                        + " heap after GC %d MB%n",
+                stats.requests.get(), stats.updates.get(), stats.notifications.get(), stats.failures.get(),
+                usedHeapMb());
+        server.stop();
+        server.destroy();
+        broker.stop();
+        peerExecutor.shutdownNow();
+    }
+
+    private void fire(double perTick) {
+        if (peers.isEmpty() || mixTotal == 0) return;
+        carry += perTick;
+        int count = (int) carry;
+        carry -= count;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < count; i++) {
+            if (nextPeer >= peers.size()) nextPeer = 0;
+            SimulatedPeer peer = peers.get(nextPeer++);
+            int pick = random.nextInt(mixTotal);
+            int m = 0;
+            while (pick >= mixWeights[m]) pick -= mixWeights[m++];
+            switch (mixMethods[m]) {
+                case "list":
+                    peer.list();
+                    break;
+                case "invoke":
+                    peer.invoke();
+                    break;
+                case "set":
+                    peer.set();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown method in mix: " + mixMethods[m]);
+            }
+        }
+    }
+
+    private static String summary(LatencyHistogram hist) {
+        return String.format("p50 %.1fms p99 %.1fms", hist.getPercentileMillis(0.5), hist.getPercentileMillis(0.99));
+    }
+
+    private static long usedHeapMb() {
+        Runtime rt = Runtime.getRuntime();
+        return (rt.totalMemory() - rt.freeMemory()) / (1024 * 1024);
+    }
+}
@@ -0,0 +1,18 @@
+package org.dsa.iot.coap.loadgen;
+
+import org.dsa.iot.coap.tracing.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms shared by all simulated peers.
+ */
+class LoadStats {
+    final AtomicLong requests = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+    final AtomicLong notifications = new AtomicLong();
+    final AtomicLong updates = new AtomicLong();
+    final LatencyHistogram requestLatency = new LatencyHistogram();
+    final LatencyHistogram streamLatency = new LatencyHistogram();
+    final LatencyHistogram updateLatency = new LatencyHistogram();
+}
@@ -0,0 +1,200 @@
+package org.dsa.iot.coap.loadgen;
+
+import org.dsa.iot.coap.Constants;
+import org.dsa.iot.coap.PayloadDecoder;
+import org.dsa.iot.dslink.util.json.JsonArray;
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapObserveRelation;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.CoapEndpoint;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One remote link as the gateway sees it: its own endpoint and port, a rid 0
+ * observation and a stream of list, invoke and set requests.
+ */
+class SimulatedPeer {
+
+    private final String uriPrefix;
+    private final LoadStats stats;
+    private final CoapEndpoint endpoint;
+    private final CoapClient gateway;
+    private final AtomicInteger nextRid = new AtomicInteger(1);
+    private CoapObserveRelation rid0Observation;
+
+    SimulatedPeer(String uriPrefix, ScheduledExecutorService executor, LoadStats stats) throws IOException {
+        this.uriPrefix = uriPrefix;
+        this.stats = stats;
+        endpoint = new CoapEndpoint(new InetSocketAddress("127.0.0.1", 0));
+        endpoint.setExecutor(executor);
+        endpoint.start();
+        gateway = new CoapClient(uriPrefix + Constants.MAIN_SERVER_NAME);
+        gateway.setEndpoint(endpoint);
+    }
+
+    /**
+     * Run the rid 0 handshake and observe the returned resource.
+     *
+     * @return false if the gateway did not answer
+     */
+    boolean handshake() {
+        JsonObject req = new JsonObject();
+        req.put(Constants.GIMME, Constants.RID_ZERO_HANDLE);
+        CoapResponse resp = gateway.advanced(newPost(req));
+        if (resp == null || resp.getPayload() == null) return false;
+        String rid0 = PayloadDecoder.decodeObject(resp.getPayload()).get(Constants.GIMME);
+        rid0Observation = observe(rid0, new CoapHandler() {
+            @Override
+            public void onLoad(CoapResponse response) {
+                if (response.getPayload() == null || PayloadDecoder.isArray(response.getPayload())) return;
+                stats.notifications.incrementAndGet();
+                long now = System.nanoTime();
+                PayloadDecoder.decodeStreaming(response.getPayload(), update -> {
+                    if (!(update instanceof JsonArray) || ((JsonArray) update).size() < 2) return;
+                    Object value = ((JsonArray) update).get(1);
+                    if (value instanceof Number) {
+                        stats.updateLatency.record((now - ((Number) value).longValue()) / 1000);
+                        stats.updates.incrementAndGet();
+                    }
+                });
+            }
+
+            @Override
+            public void onError() {
+                stats.failures.incrementAndGet();
+            }
+        });
+        return true;
+    }
+
+    void subscribe(int count, int pathSpace, int peerIndex) {
+        if (count <= 0) return;
+        JsonArray paths = new JsonArray();
+        for (int i = 0; i < count; i++) {
+            JsonObject path = new JsonObject();
+            path.put("path", "/data/value" + ((peerIndex * count + i) % pathSpace));
+            path.put("sid", i + 1);
+            path.put("qos", 0);
+            paths.add(path);
+        }
+        post(Constants.createSubReq(paths, nextRid.getAndIncrement()), null);
+    }
+
+    void list() {
+        JsonObject req = new JsonObject();
+        req.put("method", "list");
+        req.put("rid", nextRid.getAndIncrement());
+        req.put("path", "/data");
+        openStream(req, true);
+    }
+
+    void invoke() {
+        JsonObject req = new JsonObject();
+        req.put("method", "invoke");
+        req.put("rid", nextRid.getAndIncrement());
+        req.put("path", "/data/action");
+        req.put("params", new JsonObject());
+        openStream(req, false);
+    }
+
+    void set() {
+        JsonObject req = new JsonObject();
+        req.put("method", "set");
+        req.put("rid", nextRid.getAndIncrement());
+        req.put("path", "/data/setpoint");
+        req.put("value", System.nanoTime());
+        post(req, null);
+    }
+
+    void close() {
+        if (rid0Observation != null) rid0Observation.proactiveCancel();
+        endpoint.destroy();
+    }
+
+    /*
+     * Post a streaming request, observe the resource the gateway creates for it and
+     * record the time until the first non blank notification. Lists are closed from
+     * this side, invokes are closed by the broker.
+     */
+    private void openStream(JsonObject req, boolean closeAfterFirst) {
+        int rid = req.get("rid");
+        long start = System.nanoTime();
+        post(req, response -> {
+            JsonObject created = PayloadDecoder.decodeObject(response.getPayload());
+            String resource = created.get(Constants.REMOTE_RID_FIELD);
+            if (resource == null) return;
+            CoapObserveRelation[] relation = new CoapObserveRelation[1];
+            relation[0] = observe(resource, new CoapHandler() {
+                private boolean seen = false;
+
+                @Override
+                public void onLoad(CoapResponse notification) {
+                    if (seen || notification.getPayload() == null) return;
+                    JsonObject json = PayloadDecoder.decodeObject(notification.getPayload());
+                    if (json.get(Constants.BLANK_KEY) != null) return;
+                    //Windowed streams send empty batches as heartbeats
+                    JsonArray batch = json.get(Constants.BATCH_FIELD);
+                    if (batch != null && batch.size() == 0) return;
+                    seen = true;
+                    stats.streamLatency.record((System.nanoTime() - start) / 1000);
+                    if (relation[0] != null) relation[0].proactiveCancel();
+                    if (closeAfterFirst) {
+                        JsonObject close = new JsonObject();
+                        close.put("method", "close");
+                        close.put("rid", rid);
+                        post(close, null);
+                    }
+                }
+
+                @Override
+                public void onError() {
+                    stats.failures.incrementAndGet();
+                }
+            });
+        });
+    }
+
+    private CoapObserveRelation observe(String resource, CoapHandler handler) {
+        CoapClient client = new CoapClient(uriPrefix + resource);
+        client.setEndpoint(endpoint);
+        return client.observe(handler);
+    }
+
+    private void post(JsonObject json, ResponseCallback callback) {
+        long start = System.nanoTime();
+        stats.requests.incrementAndGet();
+        gateway.advanced(new CoapHandler() {
+            @Override
+            public void onLoad(CoapResponse response) {
+                stats.requestLatency.record((System.nanoTime() - start) / 1000);
+                if (!response.isSuccess()) {
+                    stats.failures.incrementAndGet();
+                } else if (callback != null && response.getPayload() != null) {
+                    callback.onResponse(response);
+                }
+            }
+
+            @Override
+            public void onError() {
+                stats.failures.incrementAndGet();
+            }
+        }, newPost(json));
+    }
+
+    private static Request newPost(JsonObject json) {
+        Request request = Request.newPost();
+        request.setPayload(Constants.jsonToBytes(json));
+        return request;
+    }
+
+    private interface ResponseCallback {
+        void onResponse(CoapResponse response);
+    }
+}
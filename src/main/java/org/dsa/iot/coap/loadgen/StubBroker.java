@@ -0,0 +1,145 @@
+package org.dsa.iot.coap.loadgen;
+
+import org.dsa.iot.coap.CoapLinkHandler;
+import org.dsa.iot.dslink.util.json.JsonArray;
+import org.dsa.iot.dslink.util.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stands in for the local broker behind a gateway. Requests are answered on a single
+ * broker thread, subscribed sids get value updates at a fixed total rate. Values are
+ * the System.nanoTime() they were produced at, so peers in the same process can
+ * measure update latency.
+ */
+public class StubBroker extends CoapLinkHandler {
+
+    private static final long TICK = 10;
+
+    private final ScheduledExecutorService brokerThread = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "stub-broker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    //Only touched on the broker thread
+    private final List<Integer> sids = new ArrayList<>();
+    private final Map<Integer, Integer> sidToIndex = new HashMap<>();
+    private int cursor = 0;
+    private double carry = 0;
+
+    private final AtomicLong updatesSent = new AtomicLong();
+    private final AtomicLong requestsHandled = new AtomicLong();
+
+    @Override
+    public void writeToLocalBroker(JsonObject json) {
+        brokerThread.execute(() -> handle(json));
+    }
+
+    /**
+     * Start producing updates for subscribed sids.
+     *
+     * @param perSecond Updates per second over all sids
+     */
+    public void startUpdates(double perSecond) {
+        if (perSecond <= 0) return;
+        brokerThread.scheduleAtFixedRate(() -> tick(perSecond * TICK / 1000), TICK, TICK, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        brokerThread.shutdownNow();
+    }
+
+    public long getUpdatesSent() {
+        return updatesSent.get();
+    }
+
+    public long getRequestsHandled() {
+        return requestsHandled.get();
+    }
+
+    private void handle(JsonObject json) {
+        requestsHandled.incrementAndGet();
+        String method = json.get("method");
+        Integer rid = json.get("rid");
+        if (method == null || rid == null) return;
+        switch (method) {
+            case "subscribe":
+                JsonArray paths = json.get("paths");
+                for (Object obj : paths) {
+                    addSid(((JsonObject) obj).get("sid"));
+                }
+                break;
+            case "unsubscribe":
+                JsonArray unsubs = json.get("sids");
+                for (Object sid : unsubs) {
+                    removeSid(((Number) sid).intValue());
+                }
+                break;
+            case "list":
+                JsonObject list = new JsonObject();
+                list.put("rid", rid);
+                list.put("stream", "open");
+                JsonArray listUpdates = new JsonArray();
+                listUpdates.add(new JsonArray().add("$is").add("node"));
+                listUpdates.add(new JsonArray().add("$stamp").add(System.nanoTime()));
+                list.put("updates", listUpdates);
+                handleRemoteDSAMessage(list);
+                break;
+            case "invoke":
+                JsonObject invoke = new JsonObject();
+                invoke.put("rid", rid);
+                invoke.put("stream", "closed");
+                JsonArray rows = new JsonArray();
+                rows.add(new JsonArray().add(System.nanoTime()));
+                invoke.put("updates", rows);
+                handleRemoteDSAMessage(invoke);
+                break;
+            default:
+                //set, remove and close need no answer
+        }
+    }
+
+    private void addSid(int sid) {
+        if (sidToIndex.containsKey(sid)) return;
+        sidToIndex.put(sid, sids.size());
+        sids.add(sid);
+    }
+
+    private void removeSid(int sid) {
+        Integer index = sidToIndex.remove(sid);
+        if (index == null) return;
+        int last = sids.remove(sids.size() - 1);
+        if (index < sids.size()) {
+            sids.set(index, last);
+            sidToIndex.put(last, index);
+        }
+    }
+
+    private void tick(double perTick) {
+        if (sids.isEmpty()) return;
+        carry += perTick;
+        int count = (int) carry;
+        carry -= count;
+        if (count == 0) return;
+
+        JsonArray updates = new JsonArray();
+        long now = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            if (cursor >= sids.size()) cursor = 0;
+            updates.add(new JsonArray().add(sids.get(cursor++)).add(now));
+        }
+        JsonObject json = new JsonObject();
+        json.put("rid", 0);
+        json.put("updates", updates);
+        handleRemoteDSAMessage(json);
+        updatesSent.addAndGet(count);
+    }
+}
@@ -17,96 +17,533 @@
 package org.dsa.iot.coap.resources;
 
 import org.dsa.iot.coap.CoapLinkHandler;
+import org.dsa.iot.coap.handlers.dsa.FlowController;
 import org.dsa.iot.coap.Constants;
+import org.dsa.iot.coap.storage.SegmentLog;
+import org.dsa.iot.coap.storage.SubscriptionStore;
+import org.dsa.iot.coap.tracing.EventRecorder;
+import org.dsa.iot.coap.tracing.Trace;
+import org.dsa.iot.coap.tracing.Tracer;
 import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValueType;
 import org.dsa.iot.dslink.util.json.JsonArray;
 import org.dsa.iot.dslink.util.json.JsonObject;
 import org.eclipse.californium.core.CoapResource;
 import org.eclipse.californium.core.CoapServer;
 import org.eclipse.californium.core.coap.CoAP;
 import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.Endpoint;
 import org.eclipse.californium.core.network.EndpointManager;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.observe.ObserveRelation;
 import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.core.server.resources.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 
 public class DSACoapServer extends CoapServer {
+    private static final Logger LOG = LoggerFactory.getLogger(DSACoapServer.class);
+
+    private static final long SESSION_SWEEP = 60;
 
     private CoapLinkHandler coapLinkHandler;
-    private CoapResource rid0Resource;
+    private Node homeNode;
+    private String rid0Mode;
+    private String serverName;
+    private boolean safEnabled;
+    private long safMaxBytes;
+    private long safMaxAge;
+    private int safReplayRate;
+    private SubscriptionStore subscriptionStore;
+    private StreamTableResource streamTable;
+    private boolean windowedStreams;
+    private double rateLimit;
+    private double rateBurst;
+    private int maxStreams;
+    private Map<String, PeerSession> sessions = new ConcurrentHashMap<>();
+    private Map<Integer, PeerSession> ridToSession = new ConcurrentHashMap<>();
+    private long sessionExpiry;
+    private ScheduledFuture<?> peersFuture;
+    private ScheduledFuture<?> sweepFuture;
     private Map<Integer, CoapResource> openRidsHash = new ConcurrentHashMap<>();
-    private Map<Integer, Integer> remoteToLocalSid = new ConcurrentHashMap<>();
-    private Map<Integer, Integer> remoteToLocalRid = new ConcurrentHashMap<>();
 
     /**
      * Add individual endpoints listening on default CoAP port on all IPv4 addresses of all network interfaces.
      */
     public void addEndpoints(int port) {
+        addEndpoints(port, NetworkConfig.getStandard());
+    }
+
+    /**
+     * Same as addEndpoints(int), with the given transport settings.
+     */
+    public void addEndpoints(int port, NetworkConfig config) {
         for (InetAddress addr : EndpointManager.getEndpointManager().getNetworkInterfaces()) {
             // only binds to IPv4 addresses and localhost
             if (addr instanceof Inet4Address || addr.isLoopbackAddress()) {
                 InetSocketAddress bindToAddress = new InetSocketAddress(addr, port);
-                addEndpoint(new CoapEndpoint(bindToAddress));
+                addEndpoint(new CoapEndpoint(bindToAddress, config));
+            }
+        }
+    }
+
+    /**
+     * Replace every endpoint by one on the same address with the given transport settings.
+     * Sessions, subscriptions and streams are kept. Observe relations went through the old
+     * endpoints and are dropped, peers register again once their notifications go stale.
+     */
+    public synchronized void rebuildEndpoints(NetworkConfig config) {
+        clearObserveRelations(getRoot());
+        if (streamTable != null) streamTable.forEachStream(CoapResource::clearObserveRelations);
+        for (Endpoint old : new ArrayList<>(getEndpoints())) {
+            InetSocketAddress address = old.getAddress();
+            old.destroy();
+            getEndpoints().remove(old);
+            CoapEndpoint replacement = new CoapEndpoint(address, config);
+            addEndpoint(replacement);
+            try {
+                replacement.start();
+            } catch (IOException e) {
+                LOG.error("Failed to bind {} with the new transport settings", address, e);
             }
         }
     }
 
+    private static void clearObserveRelations(Resource resource) {
+        if (resource instanceof CoapResource) ((CoapResource) resource).clearObserveRelations();
+        for (Resource child : resource.getChildren()) {
+            clearObserveRelations(child);
+        }
+    }
+
     /*
      * Constructor for a new gateway server. It's job is to handle new incoming
      * requests and to create new resources for streaming requests.
      */
     public DSACoapServer(Node homeNode) throws SocketException {
-        coapLinkHandler = ((CoapLinkHandler) homeNode.getLink().getHandler());
+        this(homeNode, (CoapLinkHandler) homeNode.getLink().getHandler());
+    }
+
+    /*
+     * Gateway server on the given link handler, which does not have to be the one of
+     * the node's link (e.g. a stub broker for load testing).
+     */
+    public DSACoapServer(Node homeNode, CoapLinkHandler coapLinkHandler) throws SocketException {
+        this.coapLinkHandler = coapLinkHandler;
+        this.homeNode = homeNode;
+        serverName = homeNode.getName();
+        Value mode = homeNode.getConfig(Constants.RID0_MODE);
+        rid0Mode = (mode != null) ? mode.getString() : Constants.RID0_LOSSLESS;
+        Value saf = homeNode.getConfig(Constants.SAF_ENABLED);
+        safEnabled = saf != null && saf.getBool();
+        Value maxMb = homeNode.getConfig(Constants.SAF_MAX_MB);
+        safMaxBytes = ((maxMb != null) ? maxMb.getNumber().longValue() : Constants.DEFAULT_SAF_MAX_MB) * 1024 * 1024;
+        Value maxAge = homeNode.getConfig(Constants.SAF_MAX_AGE);
+        safMaxAge = ((maxAge != null) ? maxAge.getNumber().longValue() : Constants.DEFAULT_SAF_MAX_AGE) * 1000;
+        Value rate = homeNode.getConfig(Constants.SAF_REPLAY_RATE);
+        safReplayRate = (rate != null) ? rate.getNumber().intValue() : Constants.DEFAULT_SAF_REPLAY_RATE;
+        Value limit = homeNode.getConfig(Constants.RATE_LIMIT);
+        rateLimit = (limit != null) ? limit.getNumber().doubleValue() : Constants.DEFAULT_RATE_LIMIT;
+        Value burst = homeNode.getConfig(Constants.RATE_BURST);
+        rateBurst = (burst != null) ? burst.getNumber().doubleValue() : Constants.DEFAULT_RATE_BURST;
+        Value streams = homeNode.getConfig(Constants.MAX_STREAMS);
+        maxStreams = (streams != null) ? streams.getNumber().intValue() : Constants.DEFAULT_MAX_STREAMS;
+        //Buffered updates are kept as long as the log keeps them
+        sessionExpiry = Math.max(Constants.RESYNC_GRACE * 1000, safEnabled ? safMaxAge : 0);
         setExecutor(coapLinkHandler.getExecutor());
+        peersFuture = coapLinkHandler.getExecutor().scheduleWithFixedDelay(this::publishPeers,
+                1, 1, TimeUnit.SECONDS);
+        sweepFuture = coapLinkHandler.getExecutor().scheduleWithFixedDelay(this::expireSessions,
+                SESSION_SWEEP, SESSION_SWEEP, TimeUnit.SECONDS);
         // provide an instance of a Hello-World resource
-        add(new GatewayResource(this));
+        add(new GatewayResource(this, Constants.MAIN_SERVER_NAME));
+        //Control messages get their own resource and executor, so they skip the data queue
+        GatewayResource control = new GatewayResource(this, Constants.CONTROL_SERVER_NAME);
+        control.setExecutor(coapLinkHandler.getControlExecutor());
+        add(control);
+
+        Value windowed = homeNode.getConfig(Constants.WINDOWED_STREAMS);
+        windowedStreams = windowed != null && windowed.getBool();
+        Value table = homeNode.getConfig(Constants.STREAM_TABLE);
+        if (table != null && table.getBool()) {
+            streamTable = new StreamTableResource();
+            add(streamTable);
+        }
+
+        Value persist = homeNode.getConfig(Constants.PERSIST_SUBS);
+        if (persist != null && persist.getBool()) {
+            subscriptionStore = new SubscriptionStore(new File(Constants.SUBS_DIR), serverName);
+            restoreSessions(subscriptionStore.load());
+        }
+    }
+
+    /*
+     * Rebuild peer sessions from persisted mappings. Each peer keeps its rid 0 resource
+     * name and sids, and the local broker gets a single batch subscribe per peer.
+     */
+    private void restoreSessions(Collection<SubscriptionStore.PeerRecord> records) {
+        for (SubscriptionStore.PeerRecord record : records) {
+            PeerSession session = sessions.computeIfAbsent(record.getPeer(), this::createSession);
+            //After a restart a peer gets at least the grace period to come back, one seen
+            //shortly before keeps the rest of its own window if that is longer
+            session.restoreLastSeen(Math.max(record.getLastSeen(),
+                    System.currentTimeMillis() - sessionExpiry + Constants.RESYNC_GRACE * 1000));
+            coapLinkHandler.reserveLocalId(record.getRid0());
+            createRid0Res(session, record.getRid0());
+            JsonArray paths = new JsonArray();
+            for (SubscriptionStore.SubRecord sub : record.getSubs()) {
+                coapLinkHandler.reserveLocalId(sub.getLocalSid());
+                coapLinkHandler.registerNewSid(sub.getLocalSid(), sub.getRemoteSid(), session);
+                session.getRemoteToLocalSid().put(sub.getRemoteSid(), sub.getLocalSid());
+                JsonObject path = new JsonObject();
+                path.put("path", sub.getPath());
+                path.put("sid", sub.getLocalSid());
+                path.put("qos", sub.getQos());
+                paths.add(path);
+            }
+            if (paths.size() > 0) {
+                coapLinkHandler.whenRequesterReady(() -> {
+                    int rid = coapLinkHandler.genLocalId();
+                    sendToLocalBroker(rid, Constants.createSubReq(paths, rid));
+                    coapLinkHandler.retireLocalId(rid);
+                });
+            }
+        }
+    }
+
+    /*
+     * Drop the sessions of peers that went away: nothing observes their resources and
+     * they sent nothing for sessionExpiry. A restored session starts out as seen at
+     * restore, so its peer has that long to come back.
+     */
+    private void expireSessions() {
+        long since = System.currentTimeMillis() - sessionExpiry;
+        for (PeerSession session : sessions.values()) {
+            if (session.getLastSeen() < since && !isObserved(session)) dropSession(session);
+        }
+    }
+
+    private boolean isObserved(PeerSession session) {
+        CoapResource rid0Resource = session.getRid0Resource();
+        if (rid0Resource != null && rid0Resource.getObserverCount() > 0) return true;
+        for (int localRid : session.getStreams()) {
+            CoapResource stream = findStream(localRid);
+            if (stream != null && stream.getObserverCount() > 0) return true;
+        }
+        return false;
+    }
+
+    /*
+     * Remove a session with everything it holds: its subscriptions and streams on the
+     * local broker, its resources, limits, backlog and persisted mappings.
+     */
+    private void dropSession(PeerSession session) {
+        if (!sessions.remove(session.getKey(), session)) return;
+        JsonArray remoteSids = new JsonArray();
+        JsonArray localSids = new JsonArray();
+        for (Map.Entry<Integer, Integer> ent : session.getRemoteToLocalSid().entrySet()) {
+            remoteSids.add(ent.getKey());
+            localSids.add(ent.getValue());
+        }
+        if (localSids.size() > 0) {
+            int rid = coapLinkHandler.genLocalId();
+            sendToLocalBroker(rid, Constants.createUnsubReq(localSids, rid));
+            coapLinkHandler.retireLocalId(rid);
+        }
+        retireRemoteSids(remoteSids, session);
+        for (int localRid : session.getStreams()) {
+            sendToLocalBroker(localRid, Constants.makeCloseReponse(localRid));
+            destroyRidResource(localRid);
+        }
+        for (int localRid : session.getRemoteToLocalRid().values()) {
+            if (localRid != 0) coapLinkHandler.retireLocalId(localRid);
+        }
+        session.getRemoteToLocalRid().clear();
+        CoapResource rid0Resource = session.getRid0Resource();
+        if (rid0Resource != null) {
+            remove(rid0Resource);
+            rid0Resource.delete();
+        }
+        session.close();
+        if (subscriptionStore != null) {
+            subscriptionStore.recordDrop(session.getKey());
+            subscriptionStore.flush();
+        }
+        Node peers = homeNode.getChild("peers", false);
+        if (peers != null) peers.removeChild(Node.checkAndEncodeName(session.getKey()), false);
+    }
+
+    /*
+     * Reconcile the sids a reconnecting peer holds with the ones kept for it. Sids the
+     * peer no longer has are unsubscribed locally, sids the gateway lost are reported
+     * back so the peer can subscribe just those.
+     */
+    private JsonArray resyncSession(PeerSession session, JsonArray peerSids) {
+        Set<Integer> held = new HashSet<>();
+        JsonArray missing = new JsonArray();
+        for (Object obj : peerSids) {
+            int sid = ((Number) obj).intValue();
+            held.add(sid);
+            if (!session.getRemoteToLocalSid().containsKey(sid)) missing.add(sid);
+        }
+        JsonArray extraRemote = new JsonArray();
+        JsonArray extraLocal = new JsonArray();
+        for (Map.Entry<Integer, Integer> ent : session.getRemoteToLocalSid().entrySet()) {
+            if (!held.contains(ent.getKey())) {
+                extraRemote.add(ent.getKey());
+                extraLocal.add(ent.getValue());
+            }
+        }
+        if (extraLocal.size() > 0) {
+            int rid = coapLinkHandler.genLocalId();
+            sendToLocalBroker(rid, Constants.createUnsubReq(extraLocal, rid));
+            coapLinkHandler.retireLocalId(rid);
+            retireRemoteSids(extraRemote, session);
+        }
+        return missing;
+    }
+
+    private PeerSession getSession(CoapExchange exchange) {
+        PeerSession session = sessions.computeIfAbsent(PeerSession.keyOf(exchange), this::createSession);
+        touch(session);
+        return session;
+    }
+
+    /*
+     * The peer of the session is alive. The time goes to the store now and then, so a
+     * session the peer still uses survives another restart.
+     */
+    void touch(PeerSession session) {
+        if (session.touch() && subscriptionStore != null) {
+            subscriptionStore.recordSeen(session.getKey(), session.getLastSeen());
+            subscriptionStore.flush();
+        }
+    }
+
+    /*
+     * GET on a resource of the session. Notifications go through handleGET as well, only
+     * a request that is not an established observe relation yet comes from the peer.
+     */
+    void touchOnRequest(PeerSession session, CoapExchange exchange) {
+        ObserveRelation relation = exchange.advanced().getRelation();
+        if (relation == null || !relation.isEstablished()) touch(session);
+    }
+
+    private PeerSession createSession(String key) {
+        PeerLimiter limiter = new PeerLimiter(key, rateLimit, rateBurst, maxStreams);
+        FlowController.Peer flow = getFlowController().createPeer(key);
+        if (!safEnabled) return new PeerSession(key, limiter, flow);
+        File dir = new File(Constants.SAF_DIR, serverName + File.separator + key.replaceAll("[^\\w.-]", "_"));
+        SegmentLog backlog = new SegmentLog(dir, Constants.SAF_SEGMENT_SIZE, safMaxBytes, safMaxAge);
+        return new PeerSession(key, limiter, flow, backlog, coapLinkHandler.getExecutor(), safReplayRate);
+    }
+
+    /**
+     * Drop the store and forward buffers of all peers.
+     */
+    @Override
+    public void destroy() {
+        peersFuture.cancel(false);
+        sweepFuture.cancel(false);
+        super.destroy();
+    }
+
+    public void closeSessions() {
+        peersFuture.cancel(false);
+        sweepFuture.cancel(false);
+        for (PeerSession session : sessions.values()) {
+            session.close();
+        }
+        if (subscriptionStore != null) subscriptionStore.close();
+    }
 
-        //Setup rid 0 for subscriptions
-        remoteToLocalRid.put(0,0);
+    private CoapResource createRid0Res(PeerSession session) {
+        return createRid0Res(session, 0);
     }
 
-    private void createRid0Res() {
+    private synchronized CoapResource createRid0Res(PeerSession session, int rid0) {
+        CoapResource rid0Resource = session.getRid0Resource();
         if (rid0Resource == null) {
-            int rid0 = coapLinkHandler.genLocalId();
+            if (rid0 <= 0) rid0 = coapLinkHandler.genLocalId();
             //rid0Resource = new RidBatchResource(this, rid0, 0);
-            rid0Resource = new RidUpdateResource(this, rid0, 0, true);
-            //rid0Resource = new SidUpdateResource(rid0);
+            if (Constants.RID0_LATEST.equals(rid0Mode)) {
+                rid0Resource = new SidUpdateResource(this, rid0, session);
+            } else {
+                rid0Resource = new RidUpdateResource(this, rid0, 0, true, session);
+            }
+            session.setRid0Resource(rid0Resource);
             add(rid0Resource);
+            EventRecorder.record(EventRecorder.Type.RESOURCE_CREATED, rid0, 0);
+            if (subscriptionStore != null) subscriptionStore.recordSession(session.getKey(), rid0);
         }
+        return rid0Resource;
     }
 
-    private void createNewRidResource(int localRid, int remoteRid) {
+    private void createNewRidResource(int localRid, int remoteRid, PeerSession session, Trace trace) {
         //CoapResource ridRes = new RidUpdateResource(this, localRid, remoteRid, true);
-        CoapResource ridRes = new RidUpdateResource(this, localRid, remoteRid, true);
-        openRidsHash.put(localRid, ridRes);
+        CoapResource ridRes;
+        if (windowedStreams) {
+            WindowedStreamResource windowedRes = new WindowedStreamResource(this, localRid, remoteRid, session);
+            windowedRes.setRequestTrace(trace);
+            ridRes = windowedRes;
+        } else {
+            RidUpdateResource lockstepRes = new RidUpdateResource(this, localRid, remoteRid, true, session);
+            lockstepRes.setRequestTrace(trace);
+            ridRes = lockstepRes;
+        }
+        EventRecorder.record(EventRecorder.Type.RESOURCE_CREATED, localRid, remoteRid);
         coapLinkHandler.registerNewRid(localRid, ridRes);
-        add(ridRes);
+        if (streamTable != null) {
+            streamTable.put(localRid, ridRes);
+        } else {
+            openRidsHash.put(localRid, ridRes);
+            add(ridRes);
+        }
+    }
+
+    private CoapResource findStream(int localRid) {
+        return (streamTable != null) ? streamTable.get(localRid) : openRidsHash.get(localRid);
+    }
+
+    /*
+     * Serve a gap request of a windowed stream from its retransmit buffer.
+     */
+    private JsonObject resendStream(JsonObject json) {
+        String stream = json.get("stream");
+        int idx = (stream != null) ? stream.lastIndexOf(Constants.RID_PREFIX) : -1;
+        CoapResource res = null;
+        if (idx >= 0) {
+            try {
+                res = findStream(Integer.parseInt(stream.substring(idx + Constants.RID_PREFIX.length())));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        JsonObject batch = null;
+        if (res instanceof WindowedStreamResource) {
+            batch = ((WindowedStreamResource) res).resend(((Number) json.get("from")).longValue(),
+                    ((Number) json.get("to")).longValue());
+        }
+        if (batch != null) return batch;
+        JsonObject gone = new JsonObject();
+        gone.put(Constants.GIMME, Constants.RESEND);
+        gone.put("error", "gone");
+        return gone;
+    }
+
+    FlowController getFlowController() {
+        return coapLinkHandler.getFlowController();
+    }
+
+    public ScheduledThreadPoolExecutor getExecutor() {
+        return coapLinkHandler.getExecutor();
     }
 
     public void destroyRidResource(int localRid) {
-        CoapResource ridRes = openRidsHash.remove(localRid);
+        CoapResource ridRes;
+        if (streamTable != null) {
+            //Deleting a stream takes it out of the table
+            ridRes = streamTable.get(localRid);
+            if (ridRes != null) ridRes.delete();
+        } else {
+            ridRes = openRidsHash.remove(localRid);
+            if (ridRes != null) {
+                remove(ridRes);
+                ridRes.delete();
+            }
+        }
         if (ridRes != null) {
-            remove(ridRes);
-            ridRes.delete();
+            EventRecorder.record(EventRecorder.Type.RESOURCE_DESTROYED, localRid, 0);
+        }
+        PeerSession owner = ridToSession.remove(localRid);
+        if (owner != null) {
+            owner.closeStream(localRid);
+            if (owner.getRemoteToLocalRid().values().remove(localRid)) coapLinkHandler.retireLocalId(localRid);
+        }
+    }
+
+    /*
+     * Turn the peer away with 5.03, Max-Age tells it when to try again.
+     */
+    private void rejectRequest(CoapExchange exchange, PeerLimiter limiter, long retryAfter) {
+        EventRecorder.record(EventRecorder.Type.REJECTED, 0, retryAfter);
+        exchange.setMaxAge(retryAfter);
+        exchange.respond(CoAP.ResponseCode.SERVICE_UNAVAILABLE);
+    }
+
+    /*
+     * Publish the counts of every peer that changed since the last tick, off the
+     * request path.
+     */
+    private void publishPeers() {
+        for (PeerSession session : sessions.values()) {
+            PeerLimiter limiter = session.getLimiter();
+            if (limiter.takeChanged()) updatePeerNode(limiter);
         }
     }
 
-    private void localizeSubSids(JsonObject json) {
-        createRid0Res();
+    private void updatePeerNode(PeerLimiter limiter) {
+        Node peers = homeNode.getChild("peers", false);
+        if (peers == null) {
+            peers = homeNode
+                    .createChild("peers", false)
+                    .setDisplayName("Peers")
+                    .setSerializable(false)
+                    .build();
+        }
+        String name = Node.checkAndEncodeName(limiter.getKey());
+        Node peer = peers.getChild(name, false);
+        if (peer == null) {
+            peer = peers
+                    .createChild(name, false)
+                    .setDisplayName(limiter.getKey())
+                    .setSerializable(false)
+                    .build();
+            peer.createChild("streams", false).setDisplayName("Open Streams").setSerializable(false)
+                    .setValueType(ValueType.NUMBER).build();
+            peer.createChild("rejected_rate", false).setDisplayName("Rejected (Rate)").setSerializable(false)
+                    .setValueType(ValueType.NUMBER).build();
+            peer.createChild("rejected_streams", false).setDisplayName("Rejected (Streams)").setSerializable(false)
+                    .setValueType(ValueType.NUMBER).build();
+        }
+        peer.getChild("streams", false).setValue(new Value(limiter.getStreams()));
+        peer.getChild("rejected_rate", false).setValue(new Value(limiter.getRejectedRate()));
+        peer.getChild("rejected_streams", false).setValue(new Value(limiter.getRejectedStreams()));
+    }
+
+    private void localizeSubSids(JsonObject json, PeerSession session) {
+        CoapResource rid0Resource = createRid0Res(session);
         JsonArray paths = json.get("paths");
         if (paths != null) {
             for (Object obj : paths) {
                 Integer remoteSid = ((JsonObject) obj).get("sid");
                 int localSid = coapLinkHandler.genLocalId();
                 ((JsonObject) obj).put("sid",localSid);
-                coapLinkHandler.registerNewSid(localSid, remoteSid, rid0Resource);
-                remoteToLocalSid.put(remoteSid,localSid);
+                coapLinkHandler.registerNewSid(localSid, remoteSid, session);
+                session.getRemoteToLocalSid().put(remoteSid,localSid);
+                if (subscriptionStore != null) {
+                    Integer qos = ((JsonObject) obj).get("qos");
+                    subscriptionStore.recordAdd(session.getKey(), remoteSid, localSid,
+                            ((JsonObject) obj).get("path"), (qos != null) ? qos : 0);
+                }
                 //System.out.println("Captured SID:" + sid); //DEBUG
             }
         } else {
@@ -114,11 +551,11 @@ public class DSACoapServer extends CoapServer {
         }
     }
 
-    private void localizeUnsubSids(JsonObject json) {
+    private void localizeUnsubSids(JsonObject json, PeerSession session) {
         JsonArray remoteSids = json.get("sids");
         JsonArray localSids = new JsonArray();
         for (Object remSid : remoteSids) {
-            Integer locSid = remoteToLocalSid.get(remSid);
+            Integer locSid = session.getRemoteToLocalSid().get(remSid);
             if (locSid != null) {
                 localSids.add(locSid);
             }
@@ -126,9 +563,13 @@ public class DSACoapServer extends CoapServer {
         json.put("sids", localSids);
     }
 
+    private void flushStore() {
+        if (subscriptionStore != null) subscriptionStore.flush();
+    }
+
     public void sendToLocalBroker(int rid, JsonObject json) {
         json.put("rid", rid);
-        coapLinkHandler.getRequesterLink().getWriter().writeRequest(json, false);
+        coapLinkHandler.writeToLocalBroker(json);
     }
 
     private void replyToRemoteBroker(CoapExchange exchange, JsonObject response) {
@@ -141,29 +582,33 @@ public class DSACoapServer extends CoapServer {
 
     private void replyWithNewResource(CoapExchange exchange, int newRid) {
         JsonObject response = new JsonObject();
-        response.put(Constants.REMOTE_RID_FIELD, Constants.RID_PREFIX + newRid);
+        String resource = (streamTable != null) ? StreamTableResource.streamPath(newRid) : Constants.RID_PREFIX + newRid;
+        response.put(Constants.REMOTE_RID_FIELD, resource);
         exchange.respond(CoAP.ResponseCode.CREATED, Constants.jsonToBytes(response));
     }
 
-    public int genOrGetLocalRid(int remoteRid) {
-        if (remoteToLocalRid.containsKey(remoteRid))
-            return remoteToLocalRid.get(remoteRid);
-
-        int nextRid = coapLinkHandler.genLocalId();
-        remoteToLocalRid.put(remoteRid,nextRid);
-        return nextRid;
+    /*
+     * Rids are only unique within the peer that sent them, each session maps its own.
+     */
+    public int genOrGetLocalRid(PeerSession session, int remoteRid) {
+        return session.getRemoteToLocalRid().computeIfAbsent(remoteRid, r -> coapLinkHandler.genLocalId());
     }
 
-    public void retireRemoteRid(int remoteRid) {
-        Integer localRid = remoteToLocalRid.remove(remoteRid);
-        if (localRid != null) coapLinkHandler.retireLocalId(localRid);
+    public void retireRemoteRid(PeerSession session, int remoteRid) {
+        Integer localRid = session.getRemoteToLocalRid().remove(remoteRid);
+        if (localRid != null && localRid != 0) coapLinkHandler.retireLocalId(localRid);
     }
 
-    public void retireRemoteSids(JsonArray remoteSids) {
+    public void retireRemoteSids(JsonArray remoteSids, PeerSession session) {
+        CoapResource rid0Resource = session.getRid0Resource();
         for (Object sid : remoteSids) {
             int remoteSid = (int) sid;
-            Integer localSid = remoteToLocalSid.remove(remoteSid);
+            Integer localSid = session.getRemoteToLocalSid().remove(remoteSid);
             if (localSid != null) coapLinkHandler.retireLocalId(localSid);
+            if (subscriptionStore != null) subscriptionStore.recordRemove(session.getKey(), remoteSid);
+            if (rid0Resource instanceof SidUpdateResource) {
+                ((SidUpdateResource) rid0Resource).retireSid(remoteSid);
+            }
         }
     }
 
@@ -174,23 +619,23 @@ public class DSACoapServer extends CoapServer {
 
         DSACoapServer homeServer;
 
-        public GatewayResource(DSACoapServer server) {
+        public GatewayResource(DSACoapServer server, String name) {
 
             // set resource identifier
-            super(Constants.MAIN_SERVER_NAME);
+            super(name);
             setObservable(true);
             setObserveType(CoAP.Type.CON);
             getAttributes().setObservable();
 
             // set display name
-            getAttributes().setTitle(Constants.MAIN_SERVER_NAME);
+            getAttributes().setTitle(name);
 
             homeServer = server;
         }
 
         @Override
         public void handleGET(CoapExchange exchange) {
-            System.out.println("Received GET");
+            EventRecorder.record(EventRecorder.Type.GATEWAY_REQUEST, 0, 0);
 //            JsonObject obj = new JsonObject(homeNode.);
 //            System.out.println("handleGET: " + obj); //DEBUG
 //            byte[] encoded = obj.encode(EncodingFormat.MESSAGE_PACK);
@@ -200,24 +645,36 @@ public class DSACoapServer extends CoapServer {
             exchange.respond("Hello World!");
         }
 
-        private boolean handleInternalComms(JsonObject json, CoapExchange ex) {
+        private boolean handleInternalComms(JsonObject json, CoapExchange ex, PeerSession session) {
             String req = json.get(Constants.GIMME);
             if (req == null) return false;
             if (req.equals(Constants.RID_ZERO_HANDLE)) {
-                if (rid0Resource == null) createRid0Res();
-                String r0ID = rid0Resource.getName();
+                String r0ID = homeServer.createRid0Res(session).getName();
                 json.put(Constants.GIMME, r0ID);
                 homeServer.replyToRemoteBroker(ex,json);
+                homeServer.flushStore();
+                return true;
+            } else if (req.equals(Constants.RESEND)) {
+                homeServer.replyToRemoteBroker(ex, homeServer.resendStream(json));
+                return true;
+            } else if (req.equals(Constants.RESYNC)) {
+                JsonArray missing = homeServer.resyncSession(session, json.get("sids"));
+                JsonObject reply = new JsonObject();
+                reply.put(Constants.GIMME, Constants.RESYNC);
+                reply.put("missing", missing);
+                homeServer.replyToRemoteBroker(ex,reply);
+                homeServer.flushStore();
                 return true;
             }
             return false;
         }
 
-        private void forwardAndClose(int thisRid, int remoteRid, JsonObject json, CoapExchange ex) {
+        private void forwardAndClose(int thisRid, int remoteRid, JsonObject json, CoapExchange ex,
+                                     PeerSession session) {
             homeServer.sendToLocalBroker(thisRid, json);
             json = Constants.makeCloseReponse(remoteRid);
             homeServer.replyToRemoteBroker(ex,json);
-            homeServer.retireRemoteRid(remoteRid);
+            homeServer.retireRemoteRid(session, remoteRid);
         }
 
         @Override
@@ -225,46 +682,72 @@ public class DSACoapServer extends CoapServer {
             //System.out.println("Received POST: " + new String(exchange.getRequestPayload())); //DEBUG
 
             JsonObject json = Constants.extractPayloadObject(exchange);
+            Trace trace = Tracer.fromOptions(exchange.getRequestOptions());
+            if (trace != null) trace.sinceOrigin(Tracer.GATEWAY_TRANSPORT);
 
-            if (handleInternalComms(json, exchange)) return;
+            PeerSession session = homeServer.getSession(exchange);
+            if (handleInternalComms(json, exchange, session)) return;
+
+            String method = json.get("method");
+            //Closing things only lowers the load, never turn those away
+            PeerLimiter limiter = session.getLimiter();
+            boolean streaming = "list".equals(method) || "invoke".equals(method);
+            if (!"close".equals(method) && !"unsubscribe".equals(method)) {
+                if (!limiter.tryAcquire()) {
+                    homeServer.rejectRequest(exchange, limiter, limiter.getRetryAfter());
+                    return;
+                }
+                if (streaming && !limiter.tryOpenStream()) {
+                    homeServer.rejectRequest(exchange, limiter, Constants.STREAM_RETRY_AFTER);
+                    return;
+                }
+            }
 
             int remoteRid = json.get("rid");
-            int thisRid = homeServer.genOrGetLocalRid(remoteRid);
+            int thisRid = homeServer.genOrGetLocalRid(session, remoteRid);
+            EventRecorder.record(EventRecorder.Type.GATEWAY_REQUEST, remoteRid, thisRid);
+            if (streaming) {
+                homeServer.ridToSession.put(thisRid, session);
+                session.openStream(thisRid);
+            }
 
-            String method = json.get("method");
             switch (method) {
                 case "set":
-                    forwardAndClose(thisRid, remoteRid, json, exchange);
+                    forwardAndClose(thisRid, remoteRid, json, exchange, session);
                     break;
                 case "remove":
                     //TODO: doRemove(); is the dslink reponsible for keeping track of defunct rids?
-                    forwardAndClose(thisRid, remoteRid, json, exchange);
+                    forwardAndClose(thisRid, remoteRid, json, exchange, session);
                     break;
                 case "invoke":
                 case "list":
                     //System.out.println("LIST/INVOKE RECEIVED:"+ json); //DEBUG
-                    homeServer.createNewRidResource(thisRid, remoteRid);
+                    homeServer.createNewRidResource(thisRid, remoteRid, session, trace);
                     homeServer.sendToLocalBroker(thisRid, json);
                     homeServer.replyWithNewResource(exchange,thisRid);
                     break;
                 case "subscribe":
                     //System.out.println("SUBSCRIBE RECEIVED:"+ json); //DEBUG
-                    homeServer.localizeSubSids(json);
-                    forwardAndClose(thisRid, remoteRid, json, exchange);
+                    homeServer.localizeSubSids(json, session);
+                    forwardAndClose(thisRid, remoteRid, json, exchange, session);
+                    homeServer.flushStore();
                     //System.out.println("SUBSCRIBE FROWARDED:"+ json); //DEBUG
                     break;
                 case "unsubscribe":
                     //Need to close update servers
                     //System.out.println("UNSUBSCRIBE RECEIVED:"+ json); //DEBUG
-                    homeServer.localizeUnsubSids(json);
-                    forwardAndClose(thisRid, remoteRid, json, exchange);
-                    homeServer.retireRemoteSids(json.get("sids"));
+                    //localizeUnsubSids puts a new array of local sids in the request, retire by the remote ones
+                    JsonArray unsubSids = json.get("sids");
+                    homeServer.localizeUnsubSids(json, session);
+                    forwardAndClose(thisRid, remoteRid, json, exchange, session);
+                    homeServer.retireRemoteSids(unsubSids, session);
+                    homeServer.flushStore();
                     break;
                 case "close":
                     //Need to close update servers
                     homeServer.sendToLocalBroker(thisRid, json);
                     homeServer.destroyRidResource(thisRid);
-                    homeServer.retireRemoteRid(remoteRid);
+                    homeServer.retireRemoteRid(session, remoteRid);
                     homeServer.replyDeletedToRemoteBroker(exchange);
                     break;
                 default:
@@ -0,0 +1,113 @@
+package org.dsa.iot.coap.resources;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for one peer session. Requests draw from a token bucket refilled
+ * at a fixed rate, streaming requests (list, invoke) are also capped by the number of
+ * streams the peer holds open. A limit of 0 disables it.
+ */
+public class PeerLimiter {
+
+    private final String key;
+    private final double rate;
+    private final double burst;
+    private final int maxStreams;
+
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+    private final AtomicInteger streams = new AtomicInteger();
+    private final AtomicLong rejectedRate = new AtomicLong();
+    private final AtomicLong rejectedStreams = new AtomicLong();
+    private final AtomicBoolean changed = new AtomicBoolean(true);
+
+    /**
+     * @param rate       Requests per second
+     * @param burst      Requests allowed at once after the peer was quiet
+     * @param maxStreams Streams the peer may hold open
+     */
+    PeerLimiter(String key, double rate, double burst, int maxStreams) {
+        this.key = key;
+        this.rate = rate;
+        this.burst = Math.max(burst, 1);
+        this.maxStreams = maxStreams;
+        this.tokens = this.burst;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Take a token for a request.
+     *
+     * @return false if the peer is over its rate
+     */
+    synchronized boolean tryAcquire() {
+        if (rate <= 0) return true;
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+        lastRefill = now;
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+        rejectedRate.incrementAndGet();
+        changed.set(true);
+        return false;
+    }
+
+    /**
+     * @return Seconds until the next token is available, for the Max-Age of a rejection
+     */
+    synchronized long getRetryAfter() {
+        if (rate <= 0 || tokens >= 1) return 0;
+        return Math.max(1, (long) Math.ceil((1 - tokens) / rate));
+    }
+
+    /**
+     * Count a new stream against the peer.
+     *
+     * @return false if the peer already holds its maximum of open streams
+     */
+    boolean tryOpenStream() {
+        while (true) {
+            int open = streams.get();
+            if (maxStreams > 0 && open >= maxStreams) {
+                rejectedStreams.incrementAndGet();
+                changed.set(true);
+                return false;
+            }
+            if (streams.compareAndSet(open, open + 1)) {
+                changed.set(true);
+                return true;
+            }
+        }
+    }
+
+    void closeStream() {
+        streams.decrementAndGet();
+        changed.set(true);
+    }
+
+    /**
+     * @return Whether the counts changed since the last call
+     */
+    boolean takeChanged() {
+        return changed.getAndSet(false);
+    }
+
+    public int getStreams() {
+        return streams.get();
+    }
+
+    public long getRejectedRate() {
+        return rejectedRate.get();
+    }
+
+    public long getRejectedStreams() {
+        return rejectedStreams.get();
+    }
+}
@@ -0,0 +1,209 @@
+package org.dsa.iot.coap.resources;
+
+import org.dsa.iot.coap.Constants;
+import org.dsa.iot.coap.PayloadDecoder;
+import org.dsa.iot.coap.handlers.dsa.FlowController;
+import org.dsa.iot.coap.storage.SegmentLog;
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.coap.Option;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * State the gateway keeps per remote peer. Each peer gets its own rid 0 resource,
+ * so its observe relation only carries updates for the sids it subscribed to.
+ * With store and forward enabled, updates produced while the peer has no live
+ * observer, or while the peer falls far behind on a lossless rid 0, are kept in a
+ * segment log and replayed in order once it is back or has caught up.
+ *
+ * The rate limits, the flow control backlog and the store and forward log of a peer
+ * live and die with its session.
+ */
+public class PeerSession implements UpdateResourceInterface {
+
+    private static final long REPLAY_TICK = 100;
+    //Depth of the lossless rid 0 queue beyond which updates spill to the log
+    private static final int SPILL_DEPTH = 1024;
+    //How often the time the peer was last seen goes to the subscription store
+    private static final long SEEN_PERSIST = 60000;
+
+    private final String key;
+    private CoapResource rid0Resource;
+    private final Map<Integer, Integer> remoteToLocalRid = new ConcurrentHashMap<>();
+    private final Map<Integer, Integer> remoteToLocalSid = new ConcurrentHashMap<>();
+    private final Set<Integer> streams = ConcurrentHashMap.newKeySet();
+    private final PeerLimiter limiter;
+    private volatile long lastSeen = System.currentTimeMillis();
+    private volatile long persistedSeen = 0;
+
+    private final SegmentLog backlog;
+    private final ScheduledExecutorService executor;
+    private final int replayPerTick;
+    private final FlowController.Peer flow;
+    private ScheduledFuture replayFuture;
+
+    PeerSession(String key, PeerLimiter limiter, FlowController.Peer flow) {
+        this(key, limiter, flow, null, null, 0);
+    }
+
+    /**
+     * @param limiter    Admission control of the peer
+     * @param flow       Backlog of the peer, updates spill to the log while it is paused
+     * @param backlog    Log for updates while the peer is away, null disables store and forward
+     * @param executor   Runs the replay
+     * @param replayRate Updates per second replayed after the peer is back
+     */
+    PeerSession(String key, PeerLimiter limiter, FlowController.Peer flow, SegmentLog backlog,
+                ScheduledExecutorService executor, int replayRate) {
+        this.key = key;
+        this.limiter = limiter;
+        this.flow = flow;
+        this.backlog = backlog;
+        this.executor = executor;
+        this.replayPerTick = Math.max(1, (int) (replayRate * REPLAY_TICK / 1000));
+        //Rid 0 is the subscription stream of every peer
+        remoteToLocalRid.put(0, 0);
+    }
+
+    /**
+     * Identify the peer that sent the request. Clients send their peer id with every
+     * request, so the data and control endpoints of one client share a session. Peers
+     * without one are told apart by address and port.
+     */
+    public static String keyOf(CoapExchange exchange) {
+        String host = exchange.getSourceAddress().getHostAddress();
+        List<Option> others = exchange.getRequestOptions().getOthers();
+        if (others != null) {
+            for (Option option : others) {
+                if (option.getNumber() == Constants.PEER_OPTION) return host + "/" + option.getStringValue();
+            }
+        }
+        return host + ":" + exchange.getSourcePort();
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    PeerLimiter getLimiter() {
+        return limiter;
+    }
+
+    FlowController.Peer getFlow() {
+        return flow;
+    }
+
+    /**
+     * The peer sent a request or registered an observe relation.
+     *
+     * @return Whether the time it was last seen is due to be persisted again
+     */
+    boolean touch() {
+        long now = System.currentTimeMillis();
+        lastSeen = now;
+        if (now - persistedSeen < SEEN_PERSIST) return false;
+        persistedSeen = now;
+        return true;
+    }
+
+    /**
+     * Start a restored session out as seen at the given time.
+     */
+    void restoreLastSeen(long time) {
+        lastSeen = time;
+        persistedSeen = time;
+    }
+
+    long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * Count a stream the limiter admitted against the session.
+     */
+    void openStream(int localRid) {
+        streams.add(localRid);
+    }
+
+    void closeStream(int localRid) {
+        if (streams.remove(localRid)) limiter.closeStream();
+    }
+
+    Set<Integer> getStreams() {
+        return streams;
+    }
+
+    CoapResource getRid0Resource() {
+        return rid0Resource;
+    }
+
+    void setRid0Resource(CoapResource rid0Resource) {
+        this.rid0Resource = rid0Resource;
+    }
+
+    Map<Integer, Integer> getRemoteToLocalRid() {
+        return remoteToLocalRid;
+    }
+
+    Map<Integer, Integer> getRemoteToLocalSid() {
+        return remoteToLocalSid;
+    }
+
+    @Override
+    public synchronized void postDSAUpdate(JsonObject json) {
+        //Once anything is buffered, everything goes through the log to keep the order
+        if (backlog != null && (!isDelivering() || !backlog.isEmpty())) {
+            json.put("rid", 0);
+            backlog.append(Constants.jsonToBytes(json));
+            if (replayFuture == null) {
+                replayFuture = executor.scheduleWithFixedDelay(this::replay, REPLAY_TICK, REPLAY_TICK,
+                        TimeUnit.MILLISECONDS);
+            }
+            return;
+        }
+        ((UpdateResourceInterface) rid0Resource).postDSAUpdate(json);
+    }
+
+    /*
+     * Whether updates can go to the rid 0 resource directly. Californium keeps a dead
+     * observer for a while, until then its lossless queue is bounded by spilling.
+     */
+    private boolean isDelivering() {
+        if (rid0Resource.getObserverCount() < 1) return false;
+        if (flow.isPaused()) return false;
+        return !(rid0Resource instanceof RidUpdateResource)
+                || ((RidUpdateResource) rid0Resource).getQueueDepth() < SPILL_DEPTH;
+    }
+
+    private synchronized void replay() {
+        for (int i = 0; i < replayPerTick && isDelivering(); i++) {
+            byte[] record = backlog.poll();
+            if (record == null) break;
+            ((UpdateResourceInterface) rid0Resource).postDSAUpdate(PayloadDecoder.decodeObject(record));
+        }
+        if (backlog.isEmpty()) {
+            replayFuture.cancel(false);
+            replayFuture = null;
+        }
+    }
+
+    /**
+     * Drop anything still buffered for the peer, along with its log and backlog.
+     */
+    synchronized void close() {
+        if (replayFuture != null) {
+            replayFuture.cancel(false);
+            replayFuture = null;
+        }
+        if (backlog != null) backlog.delete();
+        flow.close();
+    }
+}
@@ -66,8 +66,8 @@ public class RidBatchResource extends CoapResource implements UpdateResourceInte
     }
 
     private void selfDestruct() {
+        //Also retires the rid mapping of the session that opened the stream
         homeServer.destroyRidResource(localRid);
-        homeServer.retireRemoteRid(remoteRid);
     }
 
     @Override
@@ -1,9 +1,14 @@
 package org.dsa.iot.coap.resources;
 
 import org.dsa.iot.coap.Constants;
+import org.dsa.iot.coap.handlers.dsa.FlowController;
+import org.dsa.iot.coap.tracing.EventRecorder;
+import org.dsa.iot.coap.tracing.Trace;
+import org.dsa.iot.coap.tracing.Tracer;
 import org.dsa.iot.dslink.util.json.JsonObject;
 import org.eclipse.californium.core.CoapResource;
 import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.server.resources.CoapExchange;
 
 import java.util.ArrayDeque;
@@ -20,12 +25,17 @@ public class RidUpdateResource extends CoapResource implements UpdateResourceInt
     private final DSACoapServer homeServer;
     private final int localRid;
     private final int remoteRid;
+    private final PeerSession session;
 
     private boolean lossless;
     private final AtomicBoolean waiting;
     private Queue<JsonObject> messageQue;
+    private final FlowController.Peer flow;
+    private boolean released = false;
 
     private JsonObject latest;
+    private volatile Trace requestTrace;
+    private volatile Trace pendingTrace;
     private AtomicInteger willToLive = new AtomicInteger(Constants.LIFE_TIME);
 
     private void clearData() {
@@ -37,13 +47,15 @@ public class RidUpdateResource extends CoapResource implements UpdateResourceInt
         }
     }
 
-    RidUpdateResource(DSACoapServer homeServer, int localRid, int remoteRid, boolean lossless) {
+    RidUpdateResource(DSACoapServer homeServer, int localRid, int remoteRid, boolean lossless, PeerSession session) {
         // set resource identifier
         super(Constants.RID_PREFIX + Integer.toString(localRid));
         this.localRid = localRid;
         this.homeServer = homeServer;
         this.remoteRid = remoteRid;
         this.lossless = lossless;
+        this.session = session;
+        this.flow = session.getFlow();
 
         waiting = new AtomicBoolean(false);
 
@@ -58,6 +70,15 @@ public class RidUpdateResource extends CoapResource implements UpdateResourceInt
         getAttributes().setTitle(Constants.RID_PREFIX + Integer.toString(localRid));
     }
 
+    /**
+     * @return Notifications waiting behind the one in flight
+     */
+    int getQueueDepth() {
+        synchronized (waiting) {
+            return (lossless && messageQue != null) ? messageQue.size() : 0;
+        }
+    }
+
     private boolean goodDayToDie(JsonObject json) {
         String str = json.get("stream");
         if (str != null && str.equals("closed")) {
@@ -68,13 +89,32 @@ public class RidUpdateResource extends CoapResource implements UpdateResourceInt
 
     private void selfDestruct() {
         homeServer.destroyRidResource(localRid);
-        homeServer.retireRemoteRid(remoteRid);
+        homeServer.retireRemoteRid(session, remoteRid);
+    }
+
+    /**
+     * Trace of the request that opened the stream, its first update closes the local broker stage.
+     */
+    void setRequestTrace(Trace trace) {
+        requestTrace = trace;
     }
 
     @Override
     public void handleGET(CoapExchange exchange) {
+        homeServer.touchOnRequest(session, exchange);
         synchronized (waiting) {
-            exchange.respond(latest.toString());
+            EventRecorder.record(EventRecorder.Type.NOTIFICATION, localRid, messageQue != null ? messageQue.size() : 0);
+            Trace trace = pendingTrace;
+            if (trace != null) {
+                pendingTrace = null;
+                trace.stage(Tracer.GATEWAY_NOTIFY);
+                Response response = new Response(CoAP.ResponseCode.CONTENT);
+                response.setPayload(latest.toString());
+                Tracer.attach(response.getOptions(), trace);
+                exchange.respond(response);
+            } else {
+                exchange.respond(latest.toString());
+            }
             //System.out.println("REPOOOOONSE:" + exchange.advanced().getResponse()); //DEBUG
             //System.out.println("RID UPDATE SENDING:" + latest); //DEBUG
 
@@ -88,14 +128,37 @@ public class RidUpdateResource extends CoapResource implements UpdateResourceInt
                     waiting.set(false);
                 } else {
                     latest = messageQue.poll();
+                    if (!released) flow.delivered(1);
                     changed();
                 }
             }
         }
     }
 
+    @Override
+    public void delete() {
+        if (lossless) {
+            //Whatever is still queued no longer counts against the broker
+            synchronized (waiting) {
+                if (!released) flow.delivered(messageQue.size());
+                released = true;
+            }
+        }
+        super.delete();
+    }
+
     public void postDSAUpdate(JsonObject json) {
         json.put("rid", remoteRid);
+        //The trace rides on the next notification
+        Trace trace = requestTrace;
+        if (trace != null) {
+            requestTrace = null;
+            trace.stage(Tracer.GATEWAY_LOCAL_BROKER);
+            pendingTrace = trace;
+        } else if ((trace = Tracer.current()) != null) {
+            trace.stage(Tracer.GATEWAY_DISPATCH);
+            pendingTrace = trace;
+        }
         //System.out.println("RID UPDATE HEARD:" + json); //DEBUG
 
 
@@ -114,8 +177,10 @@ public class RidUpdateResource extends CoapResource implements UpdateResourceInt
         if (lossless) {
             synchronized (waiting) {
                 messageQue.add(json);
+                if (!released) flow.enqueued();
                 if (!waiting.get()) {
                     latest = messageQue.poll();
+                    if (!released) flow.delivered(1);
                     waiting.set(true);
                     changed();
                 }
@@ -1,39 +1,52 @@
 package org.dsa.iot.coap.resources;
 
 import org.dsa.iot.coap.Constants;
+import org.dsa.iot.coap.tracing.EventRecorder;
+import org.dsa.iot.coap.tracing.Trace;
+import org.dsa.iot.coap.tracing.Tracer;
 import org.dsa.iot.dslink.util.json.JsonArray;
 import org.dsa.iot.dslink.util.json.JsonObject;
 import org.eclipse.californium.core.CoapResource;
 import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MessageObserverAdapter;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.observe.ObserveRelation;
 import org.eclipse.californium.core.server.resources.CoapExchange;
 
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.WeakHashMap;
 
 /**
+ * Last value resource for subscription updates, backed by a SidValueStore. Every new
+ * observe registration gets a full snapshot, notifications then carry the sids that
+ * changed since the last notification the observer acknowledged.
+ *
  * @author James (Juris) Puchin
  * Created on 12/15/2017
  */
 public class SidUpdateResource extends CoapResource implements UpdateResourceInterface {
 
-    private final int REFRESH_RATE = 1000;
-    private long lastRefresh;
-    JsonObject latest;
-    Map<Integer, Object> currentState;
+    private static final String SNAPSHOT_HEAD = "{\"rid\":0,\"updates\":[";
+    private static final String SNAPSHOT_TAIL = "]}";
 
-    private void clearData() {
-        latest = new JsonObject();
-        currentState = new ConcurrentHashMap<>();
-        latest.put(Constants.BLANK_KEY, Constants.BLANK_VAL);
-    }
+    private final DSACoapServer homeServer;
+    private final PeerSession session;
+    private final Object lock = new Object();
+    private final SidValueStore store = new SidValueStore();
+    //Per observe relation, relations Californium dropped go away with it
+    private final Map<ObserveRelation, Long> ackedSequences = new WeakHashMap<>();
+    private final String blank;
+    private volatile Trace pendingTrace;
 
-    SidUpdateResource(int localRid) {
+    SidUpdateResource(DSACoapServer homeServer, int localRid, PeerSession session) {
         // set resource identifier
         super(Constants.RID_PREFIX + Integer.toString(localRid));
+        this.homeServer = homeServer;
+        this.session = session;
 
-        lastRefresh = System.currentTimeMillis();
-
-        clearData();
+        JsonObject obj = new JsonObject();
+        obj.put(Constants.BLANK_KEY, Constants.BLANK_VAL);
+        blank = obj.toString();
 
         //TODO: verify these settings
         setObservable(true);
@@ -46,26 +59,84 @@ public class SidUpdateResource extends CoapResource implements UpdateResourceInt
 
     @Override
     public void handleGET(CoapExchange exchange) {
-        long cur = System.currentTimeMillis();
-        if (cur - lastRefresh > REFRESH_RATE) {
-            latest = Constants.createSidUpd(currentState);
-            lastRefresh = cur;
+        ObserveRelation relation = exchange.advanced().getRelation();
+        //A registration is not established until its first response went out
+        boolean registration = relation == null || !relation.isEstablished();
+        if (registration) homeServer.touch(session);
+        String payload;
+        long sequence;
+        synchronized (lock) {
+            Long acked = registration ? null : ackedSequences.get(relation);
+            sequence = store.getSequence();
+            if (acked == null && store.isEmpty()) {
+                payload = blank;
+            } else {
+                StringBuilder builder = new StringBuilder(SNAPSHOT_HEAD);
+                if (acked == null || !store.appendDelta(builder, acked)) {
+                    builder.setLength(SNAPSHOT_HEAD.length());
+                    store.appendSnapshot(builder);
+                }
+                payload = builder.append(SNAPSHOT_TAIL).toString();
+            }
+            //The registration response rides on the ACK of the request, retransmissions of
+            //the request get it again, so it counts as delivered right away
+            if (registration && relation != null) ackedSequences.put(relation, sequence);
+        }
+        EventRecorder.record(EventRecorder.Type.NOTIFICATION, 0, payload.length());
+        Response response = new Response(CoAP.ResponseCode.CONTENT);
+        response.setPayload(payload);
+        if (!registration) {
+            //Notifications only count once acknowledged, a lost or replaced one is covered
+            //by the delta of the next notification
+            response.addMessageObserver(new MessageObserverAdapter() {
+                @Override
+                public void onAcknowledgement() {
+                    acknowledged(relation, sequence);
+                }
+            });
         }
-        exchange.respond(latest.toString());
+        Trace trace = pendingTrace;
+        if (trace != null) {
+            pendingTrace = null;
+            trace.stage(Tracer.GATEWAY_NOTIFY);
+            Tracer.attach(response.getOptions(), trace);
+        }
+        exchange.respond(response);
         //System.out.println("I AM SENDING THIS:" + latest); //DEBUG
     }
 
-    public void postDSAUpdate(JsonObject json) {
-        json.put("rid", 0);
-        latest = json;
+    private void acknowledged(ObserveRelation relation, long sequence) {
+        synchronized (lock) {
+            Long acked = ackedSequences.get(relation);
+            if (acked == null || acked < sequence) ackedSequences.put(relation, sequence);
+        }
+    }
 
+    public void postDSAUpdate(JsonObject json) {
         JsonArray updates = json.get("updates");
+        if (updates == null) return;
+        //The trace rides on the next notification
+        Trace trace = Tracer.current();
+        if (trace != null) {
+            trace.stage(Tracer.GATEWAY_DISPATCH);
+            pendingTrace = trace;
+        }
 
-        for (Object up : updates) {
-            int sid = Constants.getSid(up);
-            currentState.put(sid, up);
+        synchronized (lock) {
+            for (Object up : updates) {
+                store.put(up);
+            }
         }
 
         changed();
     }
+
+    /**
+     * Drop the last value of a sid that is no longer subscribed.
+     */
+    public void retireSid(int sid) {
+        synchronized (lock) {
+            store.remove(sid);
+        }
+    }
 }
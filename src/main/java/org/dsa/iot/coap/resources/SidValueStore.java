@@ -0,0 +1,229 @@
+package org.dsa.iot.coap.resources;
+
+import org.dsa.iot.coap.Constants;
+import org.dsa.iot.dslink.util.json.JsonArray;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Columnar last value store for subscription updates, keyed by the sid the update
+ * carries. That is the sid chosen by the subscribing peer, usually small and dense, so
+ * sids below MAX_DENSE_SID index the columns directly; negative and larger ones are
+ * kept pre-encoded in a map. Plain [sid, value, ts] updates with a number or bool value
+ * live in primitive columns, everything else is kept pre-encoded in a side table. A
+ * ring of recently changed sids serves deltas, observers that fell out of it get a full
+ * snapshot instead.
+ *
+ * Not thread safe, SidUpdateResource guards it with its lock.
+ */
+public class SidValueStore {
+
+    private static final byte EMPTY = 0;
+    private static final byte LONG = 1;
+    private static final byte DOUBLE = 2;
+    private static final byte TRUE = 3;
+    private static final byte FALSE = 4;
+    private static final byte RAW = 5;
+
+    private static final int LOG_SIZE = 1 << 16;
+    private static final int LOG_MASK = LOG_SIZE - 1;
+    //Columns never grow past this, so a peer picking huge sids can't make them
+    static final int MAX_DENSE_SID = 1 << 20;
+    private static final DateTimeFormatter TS_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+
+    private byte[] status = new byte[1024];
+    private long[] values = new long[1024];
+    private long[] times = new long[1024];
+    private short[] offsets = new short[1024];
+    private long[] sequences = new long[1024];
+    private final Map<Integer, String> raw = new HashMap<>();
+    private final Map<Integer, String> sparse = new HashMap<>();
+    private final Map<Integer, Long> sparseSequences = new HashMap<>();
+    private int size = 0;
+
+    private long sequence = 0;
+    private final int[] changeLog = new int[LOG_SIZE];
+
+    /**
+     * @return Sequence number of the latest change
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void put(Object update) {
+        int sid = Constants.getSid(update);
+        if (!isDense(sid)) {
+            putSparse(sid, update);
+            return;
+        }
+        ensureCapacity(sid);
+        if (status[sid] == EMPTY) size++;
+        if (status[sid] == RAW) raw.remove(sid);
+        if (!putColumns(sid, update)) {
+            status[sid] = RAW;
+            raw.put(sid, update.toString());
+        }
+        long seq = ++sequence;
+        sequences[sid] = seq;
+        changeLog[(int) (seq & LOG_MASK)] = sid;
+    }
+
+    private void putSparse(int sid, Object update) {
+        if (sparse.put(sid, update.toString()) == null) size++;
+        long seq = ++sequence;
+        sparseSequences.put(sid, seq);
+        changeLog[(int) (seq & LOG_MASK)] = sid;
+    }
+
+    private static boolean isDense(int sid) {
+        return sid >= 0 && sid < MAX_DENSE_SID;
+    }
+
+    private long sequenceOf(int sid) {
+        if (!isDense(sid)) {
+            Long seq = sparseSequences.get(sid);
+            return (seq != null) ? seq : 0;
+        }
+        return (sid < sequences.length) ? sequences[sid] : 0;
+    }
+
+    public void remove(int sid) {
+        if (!isDense(sid)) {
+            sparseSequences.remove(sid);
+            if (sparse.remove(sid) != null) size--;
+            return;
+        }
+        if (sid < 0 || sid >= status.length || status[sid] == EMPTY) return;
+        if (status[sid] == RAW) raw.remove(sid);
+        status[sid] = EMPTY;
+        sequences[sid] = 0;
+        size--;
+    }
+
+    /**
+     * Append every stored update, comma separated.
+     */
+    public void appendSnapshot(StringBuilder builder) {
+        boolean first = true;
+        for (int sid = 0; sid < status.length; sid++) {
+            if (status[sid] == EMPTY) continue;
+            if (!first) builder.append(',');
+            append(builder, sid);
+            first = false;
+        }
+        for (String update : sparse.values()) {
+            if (!first) builder.append(',');
+            builder.append(update);
+            first = false;
+        }
+    }
+
+    /**
+     * Append the updates of sids changed after the given sequence number, comma separated.
+     *
+     * @return false if the changes are no longer known and a snapshot must be sent
+     */
+    public boolean appendDelta(StringBuilder builder, long since) {
+        if (sequence - since > LOG_SIZE) return false;
+        boolean first = true;
+        for (long seq = since + 1; seq <= sequence; seq++) {
+            int sid = changeLog[(int) (seq & LOG_MASK)];
+            //Only the latest change of a sid counts, removed sids have sequence 0
+            if (sequenceOf(sid) != seq) continue;
+            if (!first) builder.append(',');
+            append(builder, sid);
+            first = false;
+        }
+        return true;
+    }
+
+    private boolean putColumns(int sid, Object update) {
+        if (!(update instanceof JsonArray)) return false;
+        JsonArray arr = (JsonArray) update;
+        if (arr.size() != 3) return false;
+        Object value = arr.get(1);
+        Object ts = arr.get(2);
+        if (!(ts instanceof String)) return false;
+        byte type;
+        long bits;
+        if (value instanceof Integer || value instanceof Long) {
+            type = LONG;
+            bits = ((Number) value).longValue();
+        } else if (value instanceof Double) {
+            type = DOUBLE;
+            bits = Double.doubleToRawLongBits((Double) value);
+        } else if (value instanceof Boolean) {
+            type = ((Boolean) value) ? TRUE : FALSE;
+            bits = 0;
+        } else {
+            return false;
+        }
+        OffsetDateTime time;
+        try {
+            time = OffsetDateTime.parse((String) ts);
+        } catch (RuntimeException e) {
+            return false;
+        }
+        //Only keep the timestamp in columns if it encodes back to the same string
+        if (!TS_FORMAT.format(time).equals(ts)) return false;
+        status[sid] = type;
+        values[sid] = bits;
+        times[sid] = time.toInstant().toEpochMilli();
+        offsets[sid] = (short) (time.getOffset().getTotalSeconds() / 60);
+        return true;
+    }
+
+    private void append(StringBuilder builder, int sid) {
+        if (!isDense(sid)) {
+            builder.append(sparse.get(sid));
+            return;
+        }
+        byte type = status[sid];
+        if (type == RAW) {
+            builder.append(raw.get(sid));
+            return;
+        }
+        builder.append('[').append(sid).append(',');
+        switch (type) {
+            case LONG:
+                builder.append(values[sid]);
+                break;
+            case DOUBLE:
+                builder.append(Double.longBitsToDouble(values[sid]));
+                break;
+            case TRUE:
+                builder.append("true");
+                break;
+            default:
+                builder.append("false");
+        }
+        OffsetDateTime time = OffsetDateTime.ofInstant(Instant.ofEpochMilli(times[sid]),
+                ZoneOffset.ofTotalSeconds(offsets[sid] * 60));
+        builder.append(",\"");
+        TS_FORMAT.formatTo(time, builder);
+        builder.append("\"]");
+    }
+
+    private void ensureCapacity(int sid) {
+        if (sid < status.length) return;
+        int capacity = status.length;
+        //sid is below MAX_DENSE_SID, capacity stops at it without overflowing
+        while (capacity <= sid) capacity *= 2;
+        status = Arrays.copyOf(status, capacity);
+        values = Arrays.copyOf(values, capacity);
+        times = Arrays.copyOf(times, capacity);
+        offsets = Arrays.copyOf(offsets, capacity);
+        sequences = Arrays.copyOf(sequences, capacity);
+    }
+}
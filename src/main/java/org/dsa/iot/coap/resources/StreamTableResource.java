@@ -0,0 +1,145 @@
+package org.dsa.iot.coap.resources;
+
+import org.dsa.iot.coap.Constants;
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.server.resources.Resource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Parent of all list/invoke stream resources in stream table mode. Streams are not
+ * added to the resource tree, child names are resolved through a primitive map from
+ * local rid to stream, so opening and closing a stream never mutates the tree.
+ */
+public class StreamTableResource extends CoapResource {
+
+    //Local rids start at 1, so 0 marks a free slot
+    private static final int FREE = 0;
+
+    private final Object lock = new Object();
+    private int[] keys = new int[64];
+    private CoapResource[] values = new CoapResource[64];
+    private int size = 0;
+
+    StreamTableResource() {
+        super(Constants.STREAM_TABLE_NAME);
+        getAttributes().setTitle(Constants.STREAM_TABLE_NAME);
+    }
+
+    /**
+     * @return Path of the stream relative to the server root, as handed to the remote
+     */
+    static String streamPath(int localRid) {
+        return Constants.STREAM_TABLE_NAME + "/" + Constants.RID_PREFIX + localRid;
+    }
+
+    void put(int localRid, CoapResource stream) {
+        stream.setParent(this);
+        synchronized (lock) {
+            if ((size + 1) * 2 > keys.length) resize(keys.length * 2);
+            int slot = find(keys, localRid);
+            if (keys[slot] == FREE) size++;
+            keys[slot] = localRid;
+            values[slot] = stream;
+        }
+    }
+
+    CoapResource get(int localRid) {
+        synchronized (lock) {
+            int slot = find(keys, localRid);
+            return (keys[slot] == FREE) ? null : values[slot];
+        }
+    }
+
+    CoapResource remove(int localRid) {
+        synchronized (lock) {
+            int slot = find(keys, localRid);
+            if (keys[slot] == FREE) return null;
+            CoapResource removed = values[slot];
+            size--;
+            //Backward shift deletion keeps probe chains intact without tombstones
+            int mask = keys.length - 1;
+            int hole = slot;
+            int next = (hole + 1) & mask;
+            while (keys[next] != FREE) {
+                int home = hash(keys[next]) & mask;
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    keys[hole] = keys[next];
+                    values[hole] = values[next];
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            keys[hole] = FREE;
+            values[hole] = null;
+            return removed;
+        }
+    }
+
+    void forEachStream(Consumer<CoapResource> action) {
+        List<CoapResource> streams = new ArrayList<>();
+        synchronized (lock) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != FREE) streams.add(values[i]);
+            }
+        }
+        streams.forEach(action);
+    }
+
+    @Override
+    public Resource getChild(String name) {
+        if (name == null || !name.startsWith(Constants.RID_PREFIX)) return null;
+        try {
+            return get(Integer.parseInt(name.substring(Constants.RID_PREFIX.length())));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean delete(Resource child) {
+        String name = child.getName();
+        int localRid;
+        try {
+            localRid = Integer.parseInt(name.substring(Constants.RID_PREFIX.length()));
+        } catch (RuntimeException e) {
+            return false;
+        }
+        synchronized (lock) {
+            if (get(localRid) != child) return false;
+            remove(localRid);
+        }
+        child.setParent(null);
+        return true;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        CoapResource[] oldValues = values;
+        keys = new int[capacity];
+        values = new CoapResource[capacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                int slot = find(keys, oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private static int find(int[] keys, int key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != FREE && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
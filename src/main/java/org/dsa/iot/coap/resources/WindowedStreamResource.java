@@ -0,0 +1,229 @@
+package org.dsa.iot.coap.resources;
+
+import org.dsa.iot.coap.Constants;
+import org.dsa.iot.coap.handlers.dsa.FlowController;
+import org.dsa.iot.coap.tracing.EventRecorder;
+import org.dsa.iot.coap.tracing.Trace;
+import org.dsa.iot.coap.tracing.Tracer;
+import org.dsa.iot.dslink.util.json.JsonArray;
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lossless list/invoke stream without stop and wait. Messages get per stream sequence
+ * numbers and go out in batches as NON notifications, several can be in flight at once.
+ * Sent messages stay in a retransmit buffer so the client can ask for any gap it sees.
+ * The closing notification and an idle heartbeat are sent as CON, so a lost tail is
+ * always noticed.
+ */
+public class WindowedStreamResource extends CoapResource implements UpdateResourceInterface {
+
+    private static final int RETRANSMIT_SIZE = 1024;
+    private static final int MAX_BATCH = 32;
+    private static final int MAX_RESEND = 256;
+    private static final long HEARTBEAT = 1000;
+    private static final long RESEND_LINGER = 10000;
+
+    private final DSACoapServer homeServer;
+    private final int localRid;
+    private final int remoteRid;
+    private final PeerSession session;
+    private final FlowController.Peer flow;
+
+    private final Object lock = new Object();
+    private final ArrayDeque<JsonObject> unsent = new ArrayDeque<>();
+    private final ArrayDeque<JsonObject> sent = new ArrayDeque<>();
+    private long sentBase = 1;
+    private long sentSeq = 1;
+    private boolean notifyPending = false;
+    private boolean heartbeatDue = false;
+    private boolean closed = false;
+    private boolean released = false;
+    private ScheduledFuture heartbeatFuture;
+
+    private volatile Trace requestTrace;
+    private volatile Trace pendingTrace;
+    private AtomicInteger willToLive = new AtomicInteger(Constants.LIFE_TIME);
+
+    WindowedStreamResource(DSACoapServer homeServer, int localRid, int remoteRid, PeerSession session) {
+        super(Constants.RID_PREFIX + Integer.toString(localRid));
+        this.homeServer = homeServer;
+        this.localRid = localRid;
+        this.remoteRid = remoteRid;
+        this.session = session;
+        this.flow = session.getFlow();
+
+        setObservable(true);
+        setObserveType(CoAP.Type.NON);
+        getAttributes().setObservable();
+        getAttributes().setTitle(Constants.RID_PREFIX + Integer.toString(localRid));
+    }
+
+    void setRequestTrace(Trace trace) {
+        requestTrace = trace;
+    }
+
+    private static boolean isClose(JsonObject json) {
+        return "closed".equals(json.get("stream"));
+    }
+
+    private void selfDestruct() {
+        homeServer.destroyRidResource(localRid);
+        homeServer.retireRemoteRid(session, remoteRid);
+    }
+
+    @Override
+    public void postDSAUpdate(JsonObject json) {
+        json.put("rid", remoteRid);
+
+        if (willToLive.decrementAndGet() % 100 == 0) {
+            if (getObserverCount() < 1) {
+                if (willToLive.get() < 0) {
+                    homeServer.sendToLocalBroker(localRid, Constants.makeCloseReponse(localRid));
+                    selfDestruct();
+                }
+            } else {
+                willToLive.set(Constants.LIFE_TIME);
+            }
+        }
+
+        Trace trace = requestTrace;
+        if (trace != null) {
+            requestTrace = null;
+            trace.stage(Tracer.GATEWAY_LOCAL_BROKER);
+            pendingTrace = trace;
+        } else if ((trace = Tracer.current()) != null) {
+            trace.stage(Tracer.GATEWAY_DISPATCH);
+            pendingTrace = trace;
+        }
+
+        boolean notify;
+        synchronized (lock) {
+            if (closed) return;
+            unsent.add(json);
+            if (!released) flow.enqueued();
+            //One pending notification drains everything queued up to then
+            notify = !notifyPending;
+            notifyPending = true;
+        }
+        if (notify) changed();
+    }
+
+    @Override
+    public void handleGET(CoapExchange exchange) {
+        homeServer.touchOnRequest(session, exchange);
+        JsonArray batch = new JsonArray();
+        long first;
+        boolean closing = false;
+        boolean confirmable;
+        boolean more;
+        int dropped = 0;
+        synchronized (lock) {
+            notifyPending = false;
+            first = sentSeq;
+            while (batch.size() < MAX_BATCH && !unsent.isEmpty()) {
+                JsonObject msg = unsent.poll();
+                batch.add(msg);
+                sent.add(msg);
+                sentSeq++;
+                if (sent.size() > RETRANSMIT_SIZE) {
+                    sent.poll();
+                    sentBase++;
+                }
+                if (isClose(msg)) {
+                    closing = true;
+                    closed = true;
+                    dropped = unsent.size();
+                    unsent.clear();
+                }
+            }
+            more = !unsent.isEmpty();
+            if (more) notifyPending = true;
+            confirmable = closing || (batch.size() == 0 && heartbeatDue);
+            heartbeatDue = false;
+            if (!released) flow.delivered(batch.size() + dropped);
+        }
+        EventRecorder.record(EventRecorder.Type.NOTIFICATION, localRid, batch.size());
+
+        JsonObject payload = new JsonObject();
+        payload.put(Constants.SEQ_FIELD, first);
+        payload.put(Constants.BATCH_FIELD, batch);
+        Response response = new Response(CoAP.ResponseCode.CONTENT);
+        response.setPayload(Constants.jsonToBytes(payload));
+        if (confirmable) response.setType(CoAP.Type.CON);
+        Trace trace = pendingTrace;
+        if (trace != null && batch.size() > 0) {
+            pendingTrace = null;
+            trace.stage(Tracer.GATEWAY_NOTIFY);
+            Tracer.attach(response.getOptions(), trace);
+        }
+        exchange.respond(response);
+
+        if (closing) {
+            //Keep the retransmit buffer around for late gap requests
+            homeServer.getExecutor().schedule(this::selfDestruct, RESEND_LINGER, TimeUnit.MILLISECONDS);
+        } else if (more) {
+            changed();
+        } else if (batch.size() > 0) {
+            scheduleHeartbeat();
+        }
+    }
+
+    @Override
+    public void delete() {
+        synchronized (lock) {
+            if (!released) flow.delivered(unsent.size());
+            released = true;
+        }
+        super.delete();
+    }
+
+    private void scheduleHeartbeat() {
+        synchronized (lock) {
+            if (heartbeatFuture != null && !heartbeatFuture.isDone()) return;
+            heartbeatFuture = homeServer.getExecutor().schedule(this::heartbeat, HEARTBEAT, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void heartbeat() {
+        synchronized (lock) {
+            if (closed || notifyPending) return;
+            heartbeatDue = true;
+            notifyPending = true;
+        }
+        changed();
+    }
+
+    /**
+     * Messages from..to (inclusive) again, at most MAX_RESEND of them.
+     *
+     * @return A batch like the notifications carry, or null if they left the retransmit buffer
+     */
+    JsonObject resend(long from, long to) {
+        JsonArray batch = new JsonArray();
+        synchronized (lock) {
+            if (from < sentBase || to >= sentSeq || from > to) return null;
+            long seq = sentBase;
+            Iterator<JsonObject> it = sent.iterator();
+            while (it.hasNext() && seq <= to && batch.size() < MAX_RESEND) {
+                JsonObject msg = it.next();
+                if (seq >= from) batch.add(msg);
+                seq++;
+            }
+        }
+        EventRecorder.record(EventRecorder.Type.RETRY, localRid, batch.size());
+        JsonObject payload = new JsonObject();
+        payload.put(Constants.SEQ_FIELD, from);
+        payload.put(Constants.BATCH_FIELD, batch);
+        return payload;
+    }
+}
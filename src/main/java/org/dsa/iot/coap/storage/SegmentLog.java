@@ -0,0 +1,219 @@
+package org.dsa.iot.coap.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Append only log of records kept in memory mapped segment files. Records are read
+ * back in the order they were written. The log is capped in size and age: whole
+ * segments are dropped from the head once either cap is exceeded, and records older
+ * than the age cap are skipped on read. Dropped segments are unmapped before their
+ * file is deleted, so disk and address space come back right away rather than
+ * whenever the GC gets to the buffer.
+ */
+public class SegmentLog {
+    private static final Logger LOG = LoggerFactory.getLogger(SegmentLog.class);
+
+    private static final int HEADER_SIZE = 4 + 8;
+    private static final Unmapper UNMAPPER = Unmapper.find();
+
+    private final File dir;
+    private final int segmentSize;
+    private final long maxBytes;
+    private final long maxAge;
+
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private long nextSegmentId = 0;
+    private long bytes = 0;
+
+    /**
+     * @param dir         Directory the segment files live in, emptied on creation
+     * @param segmentSize Size of one segment file in bytes
+     * @param maxBytes    Cap on the bytes held by all segments
+     * @param maxAge      Cap on the age of records in milliseconds
+     */
+    public SegmentLog(File dir, int segmentSize, long maxBytes, long maxAge) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+        this.maxAge = maxAge;
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            LOG.warn("Failed to create store and forward directory {}", dir);
+        }
+        File[] stale = dir.listFiles();
+        if (stale != null) {
+            for (File file : stale) {
+                if (!file.delete()) LOG.warn("Failed to delete {}", file);
+            }
+        }
+    }
+
+    /**
+     * Append a record, dropping the oldest segments if the log grows past its caps.
+     *
+     * @return false if the record could not be stored
+     */
+    public synchronized boolean append(byte[] record) {
+        int needed = HEADER_SIZE + record.length;
+        if (needed > segmentSize) return false;
+
+        long now = System.currentTimeMillis();
+        Segment tail = segments.peekLast();
+        try {
+            if (tail == null || tail.buffer.remaining() < needed) {
+                tail = new Segment(new File(dir, "segment-" + (nextSegmentId++) + ".log"), segmentSize);
+                segments.addLast(tail);
+                bytes += segmentSize;
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to create store and forward segment", e);
+            return false;
+        }
+
+        tail.buffer.putInt(record.length);
+        tail.buffer.putLong(now);
+        tail.buffer.put(record);
+        tail.lastAppend = now;
+
+        enforceCaps(now);
+        return true;
+    }
+
+    /**
+     * Read the next record in order.
+     *
+     * @return The record or null if the log is drained
+     */
+    public synchronized byte[] poll() {
+        long now = System.currentTimeMillis();
+        enforceCaps(now);
+        while (!segments.isEmpty()) {
+            Segment head = segments.peekFirst();
+            if (head.readPos < head.buffer.position()) {
+                int len = head.buffer.getInt(head.readPos);
+                long stamp = head.buffer.getLong(head.readPos + 4);
+                byte[] record = new byte[len];
+                ByteBuffer view = head.buffer.duplicate();
+                view.position(head.readPos + HEADER_SIZE);
+                view.get(record);
+                head.readPos += HEADER_SIZE + len;
+                if (now - stamp <= maxAge) return record;
+            } else if (head != segments.peekLast()) {
+                dropHead();
+            } else {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    public synchronized boolean isEmpty() {
+        Segment head = segments.peekFirst();
+        return head == null || (segments.size() == 1 && head.readPos >= head.buffer.position());
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Drop all segments and their files.
+     */
+    public synchronized void clear() {
+        while (!segments.isEmpty()) dropHead();
+    }
+
+    /**
+     * Drop all segments and the directory, the log is not used afterwards.
+     */
+    public synchronized void delete() {
+        clear();
+        if (dir.isDirectory() && !dir.delete()) LOG.warn("Failed to delete {}", dir);
+    }
+
+    private void enforceCaps(long now) {
+        while (segments.size() > 1 && bytes > maxBytes) dropHead();
+        while (segments.size() > 1 && now - segments.peekFirst().lastAppend > maxAge) dropHead();
+    }
+
+    private void dropHead() {
+        Segment head = segments.pollFirst();
+        if (head == null) return;
+        bytes -= segmentSize;
+        head.close();
+    }
+
+    private static class Segment {
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private int readPos = 0;
+        private long lastAppend = System.currentTimeMillis();
+
+        Segment(File file, int size) throws IOException {
+            this.file = file;
+            //The mapping stays valid after the channel is closed
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+
+        void close() {
+            UNMAPPER.unmap(buffer);
+            if (!file.delete()) LOG.warn("Failed to delete {}", file);
+        }
+    }
+
+    /*
+     * Releases a mapping right away. There is no public API for it on Java 8: Java 9
+     * and later have Unsafe.invokeCleaner, Java 8 the cleaner of the direct buffer.
+     * Without either the mapping goes when the GC collects the buffer.
+     */
+    private static class Unmapper {
+        private final Object unsafe;
+        private final Method invokeCleaner;
+
+        private Unmapper(Object unsafe, Method invokeCleaner) {
+            this.unsafe = unsafe;
+            this.invokeCleaner = invokeCleaner;
+        }
+
+        static Unmapper find() {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                return new Unmapper(field.get(null), invokeCleaner);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                return new Unmapper(null, null);
+            }
+        }
+
+        void unmap(MappedByteBuffer buffer) {
+            try {
+                if (invokeCleaner != null) {
+                    invokeCleaner.invoke(unsafe, buffer);
+                    return;
+                }
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                LOG.debug("Failed to unmap segment, left to the GC", e);
+            }
+        }
+    }
+}
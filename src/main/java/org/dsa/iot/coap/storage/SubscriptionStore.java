@@ -0,0 +1,305 @@
+package org.dsa.iot.coap.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Persists the subscription mappings of a gateway as a compact binary snapshot plus
+ * a journal of changes since the snapshot. On load the journal is replayed over the
+ * snapshot and both are compacted into a fresh snapshot.
+ */
+public class SubscriptionStore {
+    private static final Logger LOG = LoggerFactory.getLogger(SubscriptionStore.class);
+
+    private static final int MAGIC = 0x44534143;
+    private static final int VERSION = 2;
+    private static final int COMPACT_AFTER = 100000;
+
+    private static final byte OP_SESSION = 1;
+    private static final byte OP_ADD = 2;
+    private static final byte OP_REMOVE = 3;
+    private static final byte OP_DROP = 4;
+    private static final byte OP_SEEN = 5;
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private final Map<String, PeerRecord> peers = new LinkedHashMap<>();
+    private DataOutputStream journal;
+    private int journalEntries = 0;
+
+    public SubscriptionStore(File dir, String name) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            LOG.warn("Failed to create subscription store directory {}", dir);
+        }
+        snapshotFile = new File(dir, name + ".snapshot");
+        journalFile = new File(dir, name + ".journal");
+    }
+
+    /**
+     * Read the persisted mappings and start a fresh journal.
+     *
+     * @return The peers as they were when the link went down
+     */
+    public synchronized Collection<PeerRecord> load() {
+        peers.clear();
+        readSnapshot();
+        readJournal();
+        compact();
+        return peers.values();
+    }
+
+    public synchronized void recordSession(String peer, int rid0) {
+        peers.computeIfAbsent(peer, PeerRecord::new).rid0 = rid0;
+        append(OP_SESSION, peer, rid0, 0, null, 0, 0);
+    }
+
+    public synchronized void recordAdd(String peer, int remoteSid, int localSid, String path, int qos) {
+        PeerRecord record = peers.computeIfAbsent(peer, PeerRecord::new);
+        record.subs.put(remoteSid, new SubRecord(remoteSid, localSid, path, qos));
+        append(OP_ADD, peer, remoteSid, localSid, path, qos, 0);
+    }
+
+    public synchronized void recordRemove(String peer, int remoteSid) {
+        PeerRecord record = peers.get(peer);
+        if (record == null || record.subs.remove(remoteSid) == null) return;
+        append(OP_REMOVE, peer, remoteSid, 0, null, 0, 0);
+    }
+
+    /**
+     * When the peer was last seen, only kept for peers with persisted state.
+     */
+    public synchronized void recordSeen(String peer, long time) {
+        PeerRecord record = peers.get(peer);
+        if (record == null) return;
+        record.lastSeen = time;
+        append(OP_SEEN, peer, 0, 0, null, 0, time);
+    }
+
+    public synchronized void recordDrop(String peer) {
+        if (peers.remove(peer) == null) return;
+        append(OP_DROP, peer, 0, 0, null, 0, 0);
+    }
+
+    /**
+     * Push journal entries to disk.
+     */
+    public synchronized void flush() {
+        if (journal == null) return;
+        try {
+            journal.flush();
+        } catch (IOException e) {
+            LOG.warn("Failed to flush subscription journal", e);
+        }
+    }
+
+    public synchronized void close() {
+        if (journal == null) return;
+        try {
+            journal.close();
+        } catch (IOException e) {
+            LOG.warn("Failed to close subscription journal", e);
+        }
+        journal = null;
+    }
+
+    private void append(byte op, String peer, int a, int b, String path, int qos, long time) {
+        if (journal == null) return;
+        try {
+            journal.writeByte(op);
+            journal.writeUTF(peer);
+            if (op == OP_SESSION) {
+                journal.writeInt(a);
+            } else if (op == OP_ADD) {
+                journal.writeInt(a);
+                journal.writeInt(b);
+                journal.writeUTF(path);
+                journal.writeByte(qos);
+            } else if (op == OP_REMOVE) {
+                journal.writeInt(a);
+            } else if (op == OP_SEEN) {
+                journal.writeLong(time);
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to write subscription journal", e);
+        }
+        if (++journalEntries >= COMPACT_AFTER) compact();
+    }
+
+    private void readSnapshot() {
+        if (!snapshotFile.isFile()) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+            int version = (in.readInt() == MAGIC) ? in.readInt() : -1;
+            if (version < 1 || version > VERSION) {
+                LOG.warn("Ignoring subscription snapshot {} with unknown format", snapshotFile);
+                return;
+            }
+            int peerCount = in.readInt();
+            for (int i = 0; i < peerCount; i++) {
+                PeerRecord record = new PeerRecord(in.readUTF());
+                record.rid0 = in.readInt();
+                //Version 1 did not keep the time a peer was last seen
+                if (version > 1) record.lastSeen = in.readLong();
+                int subCount = in.readInt();
+                for (int j = 0; j < subCount; j++) {
+                    SubRecord sub = new SubRecord(in.readInt(), in.readInt(), in.readUTF(), in.readByte());
+                    record.subs.put(sub.remoteSid, sub);
+                }
+                peers.put(record.peer, record);
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to read subscription snapshot", e);
+        }
+    }
+
+    private void readJournal() {
+        if (!journalFile.isFile()) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            while (true) {
+                byte op = in.readByte();
+                String peer = in.readUTF();
+                switch (op) {
+                    case OP_SESSION:
+                        peers.computeIfAbsent(peer, PeerRecord::new).rid0 = in.readInt();
+                        break;
+                    case OP_ADD:
+                        SubRecord sub = new SubRecord(in.readInt(), in.readInt(), in.readUTF(), in.readByte());
+                        peers.computeIfAbsent(peer, PeerRecord::new).subs.put(sub.remoteSid, sub);
+                        break;
+                    case OP_REMOVE:
+                        int remoteSid = in.readInt();
+                        PeerRecord record = peers.get(peer);
+                        if (record != null) record.subs.remove(remoteSid);
+                        break;
+                    case OP_DROP:
+                        peers.remove(peer);
+                        break;
+                    case OP_SEEN:
+                        long seen = in.readLong();
+                        PeerRecord seenRecord = peers.get(peer);
+                        if (seenRecord != null) seenRecord.lastSeen = seen;
+                        break;
+                    default:
+                        throw new IOException("Unknown journal entry " + op);
+                }
+            }
+        } catch (EOFException e) {
+            //End of journal, a torn last entry is dropped
+        } catch (IOException e) {
+            LOG.warn("Failed to read subscription journal", e);
+        }
+    }
+
+    private void compact() {
+        close();
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(peers.size());
+            for (PeerRecord record : peers.values()) {
+                out.writeUTF(record.peer);
+                out.writeInt(record.rid0);
+                out.writeLong(record.lastSeen);
+                out.writeInt(record.subs.size());
+                for (SubRecord sub : record.subs.values()) {
+                    out.writeInt(sub.remoteSid);
+                    out.writeInt(sub.localSid);
+                    out.writeUTF(sub.path);
+                    out.writeByte(sub.qos);
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to write subscription snapshot", e);
+            return;
+        }
+        if (!tmp.renameTo(snapshotFile)) {
+            LOG.warn("Failed to replace subscription snapshot {}", snapshotFile);
+            return;
+        }
+        try {
+            journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, false)));
+            journalEntries = 0;
+        } catch (IOException e) {
+            LOG.warn("Failed to open subscription journal", e);
+        }
+    }
+
+    /**
+     * Persisted state of one peer.
+     */
+    public static class PeerRecord {
+        private final String peer;
+        private int rid0;
+        private long lastSeen;
+        private final Map<Integer, SubRecord> subs = new LinkedHashMap<>();
+
+        PeerRecord(String peer) {
+            this.peer = peer;
+        }
+
+        public String getPeer() {
+            return peer;
+        }
+
+        public int getRid0() {
+            return rid0;
+        }
+
+        /**
+         * @return When the peer was last seen in ms since the epoch, 0 if unknown
+         */
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        public Collection<SubRecord> getSubs() {
+            return subs.values();
+        }
+    }
+
+    /**
+     * Persisted mapping of one subscribed sid.
+     */
+    public static class SubRecord {
+        private final int remoteSid;
+        private final int localSid;
+        private final String path;
+        private final int qos;
+
+        SubRecord(int remoteSid, int localSid, String path, int qos) {
+            this.remoteSid = remoteSid;
+            this.localSid = localSid;
+            this.path = path;
+            this.qos = qos;
+        }
+
+        public int getRemoteSid() {
+            return remoteSid;
+        }
+
+        public int getLocalSid() {
+            return localSid;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public int getQos() {
+            return qos;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.dsa.iot.coap.tracing;
+
+import org.dsa.iot.dslink.node.actions.ActionResult;
+import org.dsa.iot.dslink.node.actions.table.Row;
+import org.dsa.iot.dslink.node.actions.table.Table;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.util.handler.Handler;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Low overhead flight recorder for the hot paths. Events go into a fixed size ring
+ * of primitive slots, so recording never allocates, locks or touches stdout. When
+ * disabled recording is a single volatile read.
+ */
+public class EventRecorder {
+
+    public enum Type {
+        GATEWAY_REQUEST,
+        NOTIFICATION,
+        ID_ALLOCATED,
+        ID_RETIRED,
+        RESOURCE_CREATED,
+        RESOURCE_DESTROYED,
+        RETRY,
+        REJECTED,
+        MESSAGE_REJECTED
+    }
+
+    private static final int CAPACITY = 1 << 16;
+    private static final int MASK = CAPACITY - 1;
+    private static final Type[] TYPES = Type.values();
+
+    private static volatile boolean enabled = false;
+    private static final AtomicLong next = new AtomicLong();
+    private static final long[] times = new long[CAPACITY];
+    private static final byte[] types = new byte[CAPACITY];
+    private static final int[] ids = new int[CAPACITY];
+    private static final long[] values = new long[CAPACITY];
+
+    public static void setEnabled(boolean enabled) {
+        EventRecorder.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param type  What happened
+     * @param id    Rid, sid or local id the event is about
+     * @param value Event specific number, e.g. a payload size or an attempt count
+     */
+    public static void record(Type type, int id, long value) {
+        if (!enabled) return;
+        int slot = (int) (next.getAndIncrement() & MASK);
+        times[slot] = System.currentTimeMillis();
+        types[slot] = (byte) type.ordinal();
+        ids[slot] = id;
+        values[slot] = value;
+    }
+
+    /**
+     * Action handler listing the recorded events, oldest first. Slots being written
+     * while the dump runs may show mixed fields.
+     */
+    public static class DumpHandler implements Handler<ActionResult> {
+        @Override
+        public void handle(ActionResult event) {
+            Table table = event.getTable();
+            long end = next.get();
+            for (long seq = Math.max(0, end - CAPACITY); seq < end; seq++) {
+                int slot = (int) (seq & MASK);
+                table.addRow(Row.make(
+                        new Value(times[slot]),
+                        new Value(TYPES[types[slot]].name()),
+                        new Value(ids[slot]),
+                        new Value(values[slot])));
+            }
+        }
+    }
+}
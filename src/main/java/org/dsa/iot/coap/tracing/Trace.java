@@ -0,0 +1,54 @@
+package org.dsa.iot.coap.tracing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One sampled message on its way across the CoAP hop. The trace id and the wall clock
+ * time the message entered the first link travel in a CoAP option, the time of the
+ * last stage on this side is kept locally.
+ */
+public class Trace {
+
+    static final int ENCODED_SIZE = 4 + 8;
+
+    private final int id;
+    private final long origin;
+    private long mark = System.nanoTime();
+
+    Trace(int id, long origin) {
+        this.id = id;
+        this.origin = origin;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Record the time since the previous stage on this side under the given stage.
+     */
+    public synchronized void stage(String name) {
+        long now = System.nanoTime();
+        Tracer.record(name, (now - mark) / 1000);
+        mark = now;
+    }
+
+    /**
+     * Record the time since the message entered the first link. Spans both sides of
+     * the hop, so it is only as accurate as the clocks of the two hosts are in sync.
+     */
+    public synchronized void sinceOrigin(String name) {
+        Tracer.record(name, (System.currentTimeMillis() - origin) * 1000);
+        mark = System.nanoTime();
+    }
+
+    byte[] encode() {
+        return ByteBuffer.allocate(ENCODED_SIZE).putInt(id).putLong(origin).array();
+    }
+
+    static Trace decode(byte[] value) {
+        if (value == null || value.length != ENCODED_SIZE) return null;
+        ByteBuffer buf = ByteBuffer.wrap(value);
+        return new Trace(buf.getInt(), buf.getLong());
+    }
+}
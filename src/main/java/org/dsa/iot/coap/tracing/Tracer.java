@@ -0,0 +1,121 @@
+package org.dsa.iot.coap.tracing;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValueType;
+import org.eclipse.californium.core.coap.Option;
+import org.eclipse.californium.core.coap.OptionSet;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Sampled latency tracing across the CoAP hop. A sampled message gets a {@link Trace}
+ * where it enters the link, the trace travels with it in an elective CoAP option
+ * and every stage it passes is recorded into a per stage histogram.
+ */
+public class Tracer {
+
+    //Experimental use range, elective so peers without tracing ignore it
+    public static final int TRACE_OPTION = 65000;
+
+    public static final String CLIENT_REQUEST = "client_request";
+    public static final String GATEWAY_TRANSPORT = "gateway_transport";
+    public static final String GATEWAY_LOCAL_BROKER = "gateway_local_broker";
+    public static final String GATEWAY_DISPATCH = "gateway_dispatch";
+    public static final String GATEWAY_NOTIFY = "gateway_notify";
+    public static final String CLIENT_END_TO_END = "client_end_to_end";
+
+    private static volatile double samplingRate = 0;
+    private static final ThreadLocal<Trace> current = new ThreadLocal<>();
+    private static final Map<String, LatencyHistogram> stages = new ConcurrentHashMap<>();
+
+    public static void setSamplingRate(double rate) {
+        samplingRate = Math.max(0, Math.min(1, rate));
+    }
+
+    public static double getSamplingRate() {
+        return samplingRate;
+    }
+
+    /**
+     * Decide whether to trace a message entering the link.
+     *
+     * @return A new trace, or null if the message is not sampled
+     */
+    public static Trace start() {
+        double rate = samplingRate;
+        if (rate <= 0) return null;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (rate < 1 && random.nextDouble() >= rate) return null;
+        return new Trace(random.nextInt(), System.currentTimeMillis());
+    }
+
+    /**
+     * Trace of the message being handled on this thread, if any.
+     */
+    public static Trace current() {
+        return current.get();
+    }
+
+    public static void setCurrent(Trace trace) {
+        if (trace == null) current.remove();
+        else current.set(trace);
+    }
+
+    public static void attach(OptionSet options, Trace trace) {
+        if (trace != null) options.addOption(new Option(TRACE_OPTION, trace.encode()));
+    }
+
+    /**
+     * @return The trace carried by the options, or null if there is none
+     */
+    public static Trace fromOptions(OptionSet options) {
+        if (samplingRate <= 0 || options == null) return null;
+        List<Option> others = options.getOthers();
+        if (others == null) return null;
+        for (Option option : others) {
+            if (option.getNumber() == TRACE_OPTION) return Trace.decode(option.getValue());
+        }
+        return null;
+    }
+
+    static void record(String stage, long micros) {
+        stages.computeIfAbsent(stage, s -> new LatencyHistogram()).record(micros);
+    }
+
+    /**
+     * Mirror the stage histograms into child nodes of the tracing node.
+     */
+    public static void publish(Node tracingNode) {
+        for (Map.Entry<String, LatencyHistogram> ent : stages.entrySet()) {
+            LatencyHistogram hist = ent.getValue();
+            Node stage = tracingNode.getChild(ent.getKey(), false);
+            if (stage == null) {
+                stage = tracingNode
+                        .createChild(ent.getKey(), false)
+                        .setSerializable(false)
+                        .build();
+                createStat(stage, "count", "Count");
+                createStat(stage, "p50", "P50 (ms)");
+                createStat(stage, "p99", "P99 (ms)");
+                createStat(stage, "max", "Max (ms)");
+            }
+            stage.getChild("count", false).setValue(new Value(hist.getCount()));
+            stage.getChild("p50", false).setValue(new Value(hist.getPercentileMillis(0.5)));
+            stage.getChild("p99", false).setValue(new Value(hist.getPercentileMillis(0.99)));
+            stage.getChild("max", false).setValue(new Value(hist.getMaxMillis()));
+        }
+    }
+
+    private static void createStat(Node stage, String name, String displayName) {
+        stage
+                .createChild(name, false)
+                .setDisplayName(displayName)
+                .setSerializable(false)
+                .setValueType(ValueType.NUMBER)
+                .build();
+    }
+}
@@ -0,0 +1,25 @@
+package org.dsa.iot.coap.bench;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fails the build when a hot path allocates more per operation than
+ * allocation-budget.properties allows. The loopback gateway binds a free port.
+ */
+public class AllocationBudgetTest {
+
+    @Test
+    public void hotPathsStayWithinBudget() throws Exception {
+        Properties budget = AllocationCheck.loadBudget(System.getProperty("allocation.budget",
+                "allocation-budget.properties"));
+        Map<String, Long> measured = AllocationCheck.measure(0);
+        List<String> failures = AllocationCheck.overBudget(measured, budget);
+        assertTrue("Over budget or without one: " + failures + ", measured " + measured, failures.isEmpty());
+    }
+}
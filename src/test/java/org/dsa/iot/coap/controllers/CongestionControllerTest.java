@@ -0,0 +1,103 @@
+package org.dsa.iot.coap.controllers;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CongestionControllerTest {
+
+    @Test
+    public void backoffFactorDependsOnTimeout() {
+        assertEquals(1500, CongestionController.backoff(500));
+        assertEquals(4000, CongestionController.backoff(2000));
+        assertEquals(6000, CongestionController.backoff(4000));
+        assertEquals(CongestionController.MAX_RTO, CongestionController.backoff(50000));
+    }
+
+    @Test
+    public void firstSampleSetsStrongEstimator() {
+        CongestionController cc = new CongestionController();
+        assertEquals(-1, cc.getSmoothedRtt(), 0);
+        cc.onResponse(100, 1);
+        assertEquals(100, cc.getSmoothedRtt(), 0);
+        assertEquals(50, cc.getRttVariance(), 0);
+        //Half of srtt + 4 * var, half of the initial RTO
+        assertEquals(1150, cc.getRto());
+    }
+
+    @Test
+    public void retransmissionsOnlyFeedWeakEstimator() {
+        CongestionController cc = new CongestionController();
+        cc.onResponse(300, 2);
+        assertEquals(-1, cc.getSmoothedRtt(), 0);
+        //Quarter of srtt + var, three quarters of the initial RTO
+        assertEquals(1612, cc.getRto());
+    }
+
+    @Test
+    public void rtoStaysWithinBounds() {
+        CongestionController cc = new CongestionController();
+        for (int i = 0; i < 50; i++) cc.onResponse(1, 1);
+        assertEquals(200, cc.getRto());
+        for (int i = 0; i < 50; i++) cc.onResponse(100000, 2);
+        assertEquals(CongestionController.MAX_RTO, cc.getRto());
+    }
+
+    @Test
+    public void windowOpensOnStableRttAndClosesOnTimeout() {
+        CongestionController cc = new CongestionController();
+        assertEquals(1, cc.getWindow());
+        //The first sample has var == srtt / 2, eight clean rounds follow
+        for (int i = 0; i < 9; i++) cc.onResponse(100, 1);
+        assertEquals(2, cc.getWindow());
+        cc.onTimeout();
+        assertEquals(1, cc.getWindow());
+    }
+
+    @Test
+    public void retransmissionResetsCleanRounds() {
+        CongestionController cc = new CongestionController();
+        for (int i = 0; i < 8; i++) cc.onResponse(100, 1);
+        cc.onResponse(100, 2);
+        cc.onResponse(100, 1);
+        assertEquals(1, cc.getWindow());
+    }
+
+    @Test
+    public void acquireQueuesBeyondWindow() {
+        CongestionController cc = new CongestionController();
+        List<String> ran = new ArrayList<>();
+        cc.acquire(() -> ran.add("first"));
+        cc.acquire(() -> ran.add("second"));
+        assertEquals(1, ran.size());
+        assertEquals(1, cc.getOutstanding());
+
+        //The queued task runs on the releasing thread and takes over the slot
+        cc.release();
+        assertEquals(2, ran.size());
+        assertEquals("second", ran.get(1));
+        assertEquals(1, cc.getOutstanding());
+        cc.release();
+        assertEquals(0, cc.getOutstanding());
+    }
+
+    @Test
+    public void releaseHandsOutEverySlotOfGrownWindow() {
+        CongestionController cc = new CongestionController();
+        List<Integer> ran = new ArrayList<>();
+        cc.acquire(() -> ran.add(0));
+        for (int i = 1; i <= 3; i++) {
+            int n = i;
+            cc.acquire(() -> ran.add(n));
+        }
+        for (int i = 0; i < 9; i++) cc.onResponse(100, 1);
+        assertTrue(cc.getWindow() >= 2);
+        cc.release();
+        assertEquals(cc.getWindow() + 1, ran.size());
+        assertEquals(cc.getWindow(), cc.getOutstanding());
+    }
+}
@@ -0,0 +1,53 @@
+package org.dsa.iot.coap.controllers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RemoteHealthTest {
+
+    @Test
+    public void missedProbesDegradeThenTakeDown() {
+        RemoteHealth health = new RemoteHealth();
+        assertEquals(RemoteHealth.State.UP, health.getState());
+        for (int i = 1; i < RemoteHealth.DOWN_AFTER; i++) {
+            assertEquals(RemoteHealth.State.DEGRADED, health.onProbeFailed());
+        }
+        assertEquals(RemoteHealth.State.DOWN, health.onProbeFailed());
+        assertTrue(health.isDown());
+    }
+
+    @Test
+    public void answeredProbeBringsRemoteBack() {
+        RemoteHealth health = new RemoteHealth();
+        for (int i = 0; i < RemoteHealth.DOWN_AFTER; i++) health.onProbeFailed();
+        assertEquals(RemoteHealth.State.UP, health.onProbe(50, 40));
+        //The run of misses starts over
+        assertEquals(RemoteHealth.State.DEGRADED, health.onProbeFailed());
+    }
+
+    @Test
+    public void slowProbeDegrades() {
+        RemoteHealth health = new RemoteHealth();
+        assertEquals(RemoteHealth.State.DEGRADED, health.onProbe(1000, 100));
+        assertFalse(health.isDown());
+    }
+
+    @Test
+    public void slowProbeBelowFloorOrWithoutRttIsNoise() {
+        RemoteHealth health = new RemoteHealth();
+        assertEquals(RemoteHealth.State.UP, health.onProbe(150, 10));
+        assertEquals(RemoteHealth.State.UP, health.onProbe(5000, -1));
+    }
+
+    @Test
+    public void resetClearsState() {
+        RemoteHealth health = new RemoteHealth();
+        for (int i = 0; i < RemoteHealth.DOWN_AFTER; i++) health.onProbeFailed();
+        health.reset();
+        assertEquals(RemoteHealth.State.UP, health.getState());
+        assertEquals(RemoteHealth.State.DEGRADED, health.onProbeFailed());
+    }
+}
@@ -0,0 +1,64 @@
+package org.dsa.iot.coap.controllers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void retryDelayIsJitteredAndCapped() {
+        for (int i = 0; i < 100; i++) {
+            long first = RetryPolicy.retryDelay(1);
+            assertTrue("first retry " + first, first >= 50 && first <= 100);
+            long late = RetryPolicy.retryDelay(30);
+            assertTrue("late retry " + late, late >= 2500 && late <= 5000);
+        }
+    }
+
+    @Test
+    public void reconnectDelayGrowsUntilReconnected() {
+        RetryPolicy policy = new RetryPolicy();
+        long first = policy.nextReconnectDelay();
+        assertTrue("first reconnect " + first, first >= 1000 && first <= 2000);
+        long second = policy.nextReconnectDelay();
+        assertTrue("second reconnect " + second, second >= 2000 && second <= 4000);
+        policy.reconnected();
+        long reset = policy.nextReconnectDelay();
+        assertTrue("reconnect after reset " + reset, reset >= 1000 && reset <= 2000);
+    }
+
+    @Test
+    public void breakerOpensAfterRunOfFailures() {
+        RetryPolicy policy = new RetryPolicy();
+        for (int i = 0; i < 4; i++) {
+            assertTrue(policy.allowRequest());
+            policy.onFailure();
+        }
+        assertEquals(RetryPolicy.State.CLOSED, policy.getState());
+        policy.onFailure();
+        assertEquals(RetryPolicy.State.OPEN, policy.getState());
+        assertFalse(policy.allowRequest());
+    }
+
+    @Test
+    public void successResetsFailureRun() {
+        RetryPolicy policy = new RetryPolicy();
+        for (int i = 0; i < 4; i++) policy.onFailure();
+        policy.onSuccess();
+        for (int i = 0; i < 4; i++) policy.onFailure();
+        assertEquals(RetryPolicy.State.CLOSED, policy.getState());
+        assertTrue(policy.allowRequest());
+    }
+
+    @Test
+    public void retryBudgetBoundsConcurrentRetries() {
+        RetryPolicy policy = new RetryPolicy();
+        for (int i = 0; i < 8; i++) assertTrue(policy.tryAcquireRetry());
+        assertFalse(policy.tryAcquireRetry());
+        policy.releaseRetry();
+        assertTrue(policy.tryAcquireRetry());
+    }
+}
@@ -0,0 +1,155 @@
+package org.dsa.iot.coap.handlers.dsa;
+
+import org.dsa.iot.coap.CoapLinkHandler;
+import org.dsa.iot.coap.Constants;
+import org.dsa.iot.coap.controllers.CoapClientController;
+import org.dsa.iot.dslink.methods.StreamState;
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Response;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class SetCoalescerTest {
+
+    private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(2);
+    private final BlockingQueue<JsonObject> posted = new LinkedBlockingQueue<>();
+    private final BlockingQueue<JsonObject> written = new LinkedBlockingQueue<>();
+    //Each post to the remote waits for a permit, so tests decide when sets complete
+    private final Semaphore answers = new Semaphore(0);
+    private volatile boolean remoteUp = true;
+    private CoapClientController controller;
+    private SetCoalescer coalescer;
+
+    @Before
+    public void setUp() {
+        CoapLinkHandler linkHandler = new CoapLinkHandler() {
+            @Override
+            public ScheduledThreadPoolExecutor getExecutor() {
+                return executor;
+            }
+
+            @Override
+            public void writeResponse(JsonObject json) {
+                written.add(json);
+            }
+        };
+        controller = new CoapClientController(new Node("remote", null, null), linkHandler) {
+            @Override
+            public Response postToRemote(JsonObject json) {
+                JsonObject sent = new JsonObject();
+                sent.put("rid", json.get("rid"));
+                sent.put("value", json.get("value"));
+                posted.add(sent);
+                answers.acquireUninterruptibly();
+                if (!remoteUp) return null;
+                JsonObject close = Constants.makeCloseReponse(json.get("rid"));
+                Response response = new Response(CoAP.ResponseCode.CONTENT);
+                response.setPayload(Constants.jsonToBytes(close));
+                return response;
+            }
+        };
+        coalescer = new SetCoalescer(controller, linkHandler);
+    }
+
+    @After
+    public void tearDown() {
+        answers.release(100);
+        executor.shutdownNow();
+    }
+
+    private static JsonObject set(int rid, String path, int value) {
+        JsonObject json = new JsonObject();
+        json.put("method", "set");
+        json.put("rid", rid);
+        json.put("path", path);
+        json.put("value", value);
+        return json;
+    }
+
+    private JsonObject nextPosted() throws InterruptedException {
+        JsonObject json = posted.poll(5, TimeUnit.SECONDS);
+        assertNotNull("Nothing posted to the remote", json);
+        return json;
+    }
+
+    private JsonObject nextWritten() throws InterruptedException {
+        JsonObject json = written.poll(5, TimeUnit.SECONDS);
+        assertNotNull("Nothing written to the broker", json);
+        return json;
+    }
+
+    @Test
+    public void setIsForwardedUnderRemoteRidAndAnsweredUnderLocalOne() throws Exception {
+        coalescer.submit(set(10, "/a", 1));
+        assertNotEquals(10, (int) nextPosted().get("rid"));
+        answers.release();
+
+        JsonObject resp = nextWritten();
+        assertEquals(10, (int) resp.get("rid"));
+        assertEquals(StreamState.CLOSED.getJsonName(), resp.get("stream"));
+        assertNull(resp.get("error"));
+        //The remote rid is given back once answered
+        assertNull(controller.releaseRid(10));
+    }
+
+    @Test
+    public void setsWhileOneIsInFlightCollapseIntoLatest() throws Exception {
+        coalescer.submit(set(1, "/a", 1));
+        assertEquals(1, (int) nextPosted().get("value"));
+        coalescer.submit(set(2, "/a", 2));
+        coalescer.submit(set(3, "/a", 3));
+        answers.release(2);
+
+        assertEquals(3, (int) nextPosted().get("value"));
+        Set<Integer> answered = new HashSet<>();
+        for (int i = 0; i < 3; i++) answered.add(nextWritten().get("rid"));
+        assertEquals(new HashSet<>(Arrays.asList(1, 2, 3)), answered);
+        assertNull(posted.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void setsToOtherPathsAreNotHeldBack() throws Exception {
+        coalescer.submit(set(1, "/a", 1));
+        nextPosted();
+        coalescer.submit(set(2, "/b", 2));
+        assertEquals(2, (int) nextPosted().get("value"));
+        answers.release(2);
+        nextWritten();
+        nextWritten();
+    }
+
+    @Test
+    public void failedSetAnswersEveryFoldedRidWithError() throws Exception {
+        remoteUp = false;
+        coalescer.submit(set(1, "/a", 1));
+        nextPosted();
+        coalescer.submit(set(2, "/a", 2));
+        answers.release(2);
+        nextPosted();
+
+        for (int i = 0; i < 2; i++) {
+            JsonObject resp = nextWritten();
+            assertEquals(StreamState.CLOSED.getJsonName(), resp.get("stream"));
+            JsonObject err = resp.get("error");
+            assertNotNull(err);
+            assertEquals("No response from remote", err.get("msg"));
+        }
+    }
+}
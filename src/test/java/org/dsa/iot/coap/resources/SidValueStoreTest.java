@@ -0,0 +1,125 @@
+package org.dsa.iot.coap.resources;
+
+import org.dsa.iot.dslink.util.json.JsonArray;
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SidValueStoreTest {
+
+    private static final String TS = "2018-01-15T10:20:30.123-08:00";
+
+    private static JsonArray update(int sid, Object value, String ts) {
+        return new JsonArray().add(sid).add(value).add(ts);
+    }
+
+    private static String snapshot(SidValueStore store) {
+        StringBuilder builder = new StringBuilder();
+        store.appendSnapshot(builder);
+        return builder.toString();
+    }
+
+    private static String delta(SidValueStore store, long since) {
+        StringBuilder builder = new StringBuilder();
+        assertTrue(store.appendDelta(builder, since));
+        return builder.toString();
+    }
+
+    @Test
+    public void updatesComeBackAsTheyWere() {
+        SidValueStore store = new SidValueStore();
+        assertTrue(store.isEmpty());
+        Object[] updates = {
+                update(1, 42, TS),
+                update(2, 1.5, TS),
+                update(3, true, TS),
+                update(4, false, TS),
+                update(5, "text", TS),
+                //Timestamps that would not encode back the same stay raw
+                update(6, 7, "2018-01-15T10:20:30+00:00"),
+                update(7, 8, "not a time"),
+                new JsonObject().put("sid", 8).put("value", 1).put("ts", TS)
+        };
+        StringBuilder expected = new StringBuilder();
+        for (Object update : updates) {
+            store.put(update);
+            if (expected.length() > 0) expected.append(',');
+            expected.append(update);
+        }
+        assertFalse(store.isEmpty());
+        assertEquals(expected.toString(), snapshot(store));
+    }
+
+    @Test
+    public void laterValueReplacesEarlierOne() {
+        SidValueStore store = new SidValueStore();
+        store.put(update(1, 42, TS));
+        store.put(update(1, "text", TS));
+        assertEquals(update(1, "text", TS).toString(), snapshot(store));
+        store.put(update(1, 43, TS));
+        assertEquals(update(1, 43, TS).toString(), snapshot(store));
+    }
+
+    @Test
+    public void sidsOutsideTheColumnsAreKept() {
+        SidValueStore store = new SidValueStore();
+        JsonArray negative = update(-1, 1, TS);
+        JsonArray large = update(SidValueStore.MAX_DENSE_SID + 5, 2, TS);
+        store.put(negative);
+        store.put(large);
+        String snapshot = snapshot(store);
+        assertTrue(snapshot, snapshot.contains(negative.toString()));
+        assertTrue(snapshot, snapshot.contains(large.toString()));
+
+        store.remove(-1);
+        store.remove(SidValueStore.MAX_DENSE_SID + 5);
+        assertTrue(store.isEmpty());
+        assertEquals("", snapshot(store));
+    }
+
+    @Test
+    public void columnsGrowForLargerSids() {
+        SidValueStore store = new SidValueStore();
+        store.put(update(5000, 1, TS));
+        assertEquals(update(5000, 1, TS).toString(), snapshot(store));
+    }
+
+    @Test
+    public void deltaHoldsLatestChangeOfEachSid() {
+        SidValueStore store = new SidValueStore();
+        store.put(update(1, 1, TS));
+        store.put(update(2, 2, TS));
+        long since = store.getSequence();
+
+        store.put(update(1, 10, TS));
+        store.put(update(3, 3, TS));
+        store.put(update(1, 11, TS));
+        store.put(update(3, 4, TS));
+        store.remove(3);
+        assertEquals(update(1, 11, TS).toString(), delta(store, since));
+        assertEquals("", delta(store, store.getSequence()));
+    }
+
+    @Test
+    public void deltaFallsBackToSnapshotOnceChangesAreForgotten() {
+        SidValueStore store = new SidValueStore();
+        long since = store.getSequence();
+        for (int i = 0; i <= 1 << 16; i++) store.put(update(i & 1023, i, TS));
+        assertFalse(store.appendDelta(new StringBuilder(), since));
+    }
+
+    @Test
+    public void removeEmptiesTheStore() {
+        SidValueStore store = new SidValueStore();
+        store.put(update(1, 1, TS));
+        store.put(update(2, "text", TS));
+        store.remove(1);
+        store.remove(2);
+        store.remove(3);
+        assertTrue(store.isEmpty());
+        assertEquals("", snapshot(store));
+    }
+}
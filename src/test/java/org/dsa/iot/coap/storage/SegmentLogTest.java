@@ -0,0 +1,95 @@
+package org.dsa.iot.coap.storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] record(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String poll(SegmentLog log) {
+        byte[] record = log.poll();
+        return (record != null) ? new String(record, StandardCharsets.UTF_8) : null;
+    }
+
+    @Test
+    public void recordsComeBackInOrderAcrossSegments() throws Exception {
+        SegmentLog log = new SegmentLog(folder.newFolder("log"), 64, 1 << 20, 60000);
+        assertTrue(log.isEmpty());
+        for (int i = 0; i < 20; i++) assertTrue(log.append(record("record-" + i)));
+        assertFalse(log.isEmpty());
+        for (int i = 0; i < 20; i++) assertEquals("record-" + i, poll(log));
+        assertNull(log.poll());
+        assertTrue(log.isEmpty());
+    }
+
+    @Test
+    public void recordLargerThanSegmentIsRejected() throws Exception {
+        SegmentLog log = new SegmentLog(folder.newFolder("log"), 64, 1 << 20, 60000);
+        assertFalse(log.append(new byte[64]));
+        assertTrue(log.isEmpty());
+    }
+
+    @Test
+    public void oldestSegmentsGoOnceOverSize() throws Exception {
+        File dir = folder.newFolder("log");
+        SegmentLog log = new SegmentLog(dir, 64, 128, 60000);
+        for (int i = 0; i < 20; i++) log.append(record("record-" + i));
+        assertTrue(log.getBytes() <= 128);
+        assertEquals(2, dir.listFiles().length);
+        //Whatever is left is the newest records, still in order
+        String first = poll(log);
+        int next = Integer.parseInt(first.substring("record-".length())) + 1;
+        assertTrue(next > 1);
+        String polled;
+        while ((polled = poll(log)) != null) assertEquals("record-" + next++, polled);
+        assertEquals(20, next);
+    }
+
+    @Test
+    public void expiredRecordsAreSkipped() throws Exception {
+        SegmentLog log = new SegmentLog(folder.newFolder("log"), 1024, 1 << 20, 50);
+        log.append(record("old"));
+        Thread.sleep(100);
+        log.append(record("new"));
+        assertEquals("new", poll(log));
+        assertNull(log.poll());
+    }
+
+    @Test
+    public void clearAndDeleteRemoveFiles() throws Exception {
+        File dir = folder.newFolder("log");
+        SegmentLog log = new SegmentLog(dir, 64, 1 << 20, 60000);
+        for (int i = 0; i < 10; i++) log.append(record("record-" + i));
+        log.clear();
+        assertTrue(log.isEmpty());
+        assertEquals(0, log.getBytes());
+        assertEquals(0, dir.listFiles().length);
+        log.append(record("again"));
+        log.delete();
+        assertFalse(dir.exists());
+    }
+
+    @Test
+    public void staleSegmentsAreDeletedOnCreation() throws Exception {
+        File dir = folder.newFolder("log");
+        assertTrue(new File(dir, "segment-0.log").createNewFile());
+        SegmentLog log = new SegmentLog(dir, 64, 1 << 20, 60000);
+        assertEquals(0, dir.listFiles().length);
+        assertTrue(log.isEmpty());
+    }
+}
@@ -0,0 +1,119 @@
+package org.dsa.iot.coap.storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class SubscriptionStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SubscriptionStore reopen(SubscriptionStore store) {
+        store.flush();
+        store.close();
+        return new SubscriptionStore(folder.getRoot(), "gateway");
+    }
+
+    private static List<SubscriptionStore.PeerRecord> list(Collection<SubscriptionStore.PeerRecord> records) {
+        return new ArrayList<>(records);
+    }
+
+    @Test
+    public void mappingsSurviveRestart() {
+        SubscriptionStore store = new SubscriptionStore(folder.getRoot(), "gateway");
+        store.load();
+        store.recordSession("peer-a", 7);
+        store.recordAdd("peer-a", 1, 101, "/data/a", 0);
+        store.recordAdd("peer-a", 2, 102, "/data/b", 1);
+        store.recordRemove("peer-a", 1);
+        store.recordSeen("peer-a", 123456L);
+
+        List<SubscriptionStore.PeerRecord> peers = list(reopen(store).load());
+        assertEquals(1, peers.size());
+        SubscriptionStore.PeerRecord peer = peers.get(0);
+        assertEquals("peer-a", peer.getPeer());
+        assertEquals(7, peer.getRid0());
+        assertEquals(123456L, peer.getLastSeen());
+        assertEquals(1, peer.getSubs().size());
+        SubscriptionStore.SubRecord sub = peer.getSubs().iterator().next();
+        assertEquals(2, sub.getRemoteSid());
+        assertEquals(102, sub.getLocalSid());
+        assertEquals("/data/b", sub.getPath());
+        assertEquals(1, sub.getQos());
+    }
+
+    @Test
+    public void compactedSnapshotKeepsMappings() {
+        SubscriptionStore store = new SubscriptionStore(folder.getRoot(), "gateway");
+        store.load();
+        store.recordSession("peer-a", 7);
+        store.recordAdd("peer-a", 1, 101, "/data/a", 0);
+        store = reopen(store);
+        //This load compacts the journal into the snapshot, the next one reads only the snapshot
+        store.load();
+        List<SubscriptionStore.PeerRecord> peers = list(reopen(store).load());
+        assertEquals(1, peers.size());
+        assertEquals(1, peers.get(0).getSubs().size());
+        assertEquals(0, new File(folder.getRoot(), "gateway.journal").length());
+    }
+
+    @Test
+    public void droppedPeerIsForgotten() {
+        SubscriptionStore store = new SubscriptionStore(folder.getRoot(), "gateway");
+        store.load();
+        store.recordSession("peer-a", 7);
+        store.recordSession("peer-b", 8);
+        store.recordAdd("peer-b", 1, 101, "/data/a", 0);
+        store.recordDrop("peer-b");
+
+        List<SubscriptionStore.PeerRecord> peers = list(reopen(store).load());
+        assertEquals(1, peers.size());
+        assertEquals("peer-a", peers.get(0).getPeer());
+    }
+
+    @Test
+    public void seenIsOnlyKeptForKnownPeers() {
+        SubscriptionStore store = new SubscriptionStore(folder.getRoot(), "gateway");
+        store.load();
+        store.recordSeen("peer-a", 123456L);
+        assertEquals(0, reopen(store).load().size());
+    }
+
+    @Test
+    public void tornJournalEntryIsDropped() throws Exception {
+        SubscriptionStore store = new SubscriptionStore(folder.getRoot(), "gateway");
+        store.load();
+        store.recordSession("peer-a", 7);
+        store.flush();
+        store.close();
+        //Start of an add entry cut short by a crash
+        try (OutputStream out = new FileOutputStream(new File(folder.getRoot(), "gateway.journal"), true)) {
+            out.write(new byte[]{2, 0, 6, 'p', 'e'});
+        }
+
+        List<SubscriptionStore.PeerRecord> peers = list(new SubscriptionStore(folder.getRoot(), "gateway").load());
+        assertEquals(1, peers.size());
+        assertEquals(7, peers.get(0).getRid0());
+        assertEquals(0, peers.get(0).getSubs().size());
+    }
+
+    @Test
+    public void snapshotOfUnknownFormatIsIgnored() throws Exception {
+        try (OutputStream out = new FileOutputStream(new File(folder.getRoot(), "gateway.snapshot"))) {
+            out.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        }
+        SubscriptionStore store = new SubscriptionStore(folder.getRoot(), "gateway");
+        assertEquals(0, store.load().size());
+        store.close();
+    }
+}
@@ -0,0 +1,51 @@
+package org.dsa.iot.coap.tracing;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentileMillis(0.99), 0);
+        assertEquals(0, histogram.getMaxMillis(), 0);
+    }
+
+    @Test
+    public void percentileIsUpperBoundOfItsBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        //90 samples in [512, 1024) us, 10 in [8192, 16384) us
+        for (int i = 0; i < 90; i++) histogram.record(600);
+        for (int i = 0; i < 10; i++) histogram.record(10000);
+        assertEquals(100, histogram.getCount());
+        assertEquals(1.024, histogram.getPercentileMillis(0.5), 0);
+        assertEquals(1.024, histogram.getPercentileMillis(0.9), 0);
+        assertEquals(16.384, histogram.getPercentileMillis(0.91), 0);
+        assertEquals(10, histogram.getMaxMillis(), 0);
+    }
+
+    @Test
+    public void outOfRangeSamplesAreClamped() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(0.002, histogram.getPercentileMillis(1), 0);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(2, histogram.getCount());
+        //Samples past the last bucket are counted in it
+        assertEquals((1L << 40) / 1000.0, histogram.getPercentileMillis(1), 0);
+    }
+
+    @Test
+    public void resetForgetsSamples() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(600);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxMillis(), 0);
+        histogram.record(3);
+        assertEquals(0.004, histogram.getPercentileMillis(1), 0);
+    }
+}